@@ -1,16 +1,34 @@
 package com.torrent4j;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.torrent4j.model.Torrent;
 import com.torrent4j.model.TorrentPiece;
 import com.torrent4j.net.TorrentProtocol;
 import com.torrent4j.net.peerwire.PeerWireProtocol;
-import com.torrent4j.storage.NIOTorrentStorage;
+import com.torrent4j.storage.CachedTorrentStorage;
+import com.torrent4j.storage.FastResumeStore;
+import com.torrent4j.storage.FileAwareTorrentStorage;
+import com.torrent4j.storage.PooledNIOTorrentStorage;
 import com.torrent4j.storage.TorrentStorage;
+import com.torrent4j.storage.WriteBackTorrentStorage;
 import com.torrent4j.util.Hash;
+import com.torrent4j.util.HashType;
 
 /**
  * The main class for starting torrent transfers. Each torrent instance need to
@@ -34,9 +52,25 @@ public class TorrentController {
 	 */
 	private final TorrentStorage storage;
 	/**
-	 * The list of torrents controlled on this controller
+	 * The torrents controlled on this controller, indexed by the raw bytes of
+	 * their info-hash. Lookups happen on every incoming handshake, from any
+	 * network thread, and never block.
 	 */
-	private final List<Torrent> torrents = new ArrayList<>();
+	private final ConcurrentMap<ByteBuffer, Torrent> torrents = new ConcurrentHashMap<>();
+	/**
+	 * The executor in which storage writes and piece verifications are
+	 * performed, off the network threads
+	 */
+	private ExecutorService diskExecutor;
+	/**
+	 * The executor in which torrent space is allocated, one torrent at a time
+	 */
+	private final ThreadPoolExecutor allocationExecutor;
+	/**
+	 * The executor in which delayed and periodic tasks run, such as saving
+	 * fast resume data or retrying tasks rejected by the disk executor
+	 */
+	private ScheduledExecutorService scheduler;
 
 	/**
 	 * Creates a new controller
@@ -49,17 +83,30 @@ public class TorrentController {
 	public TorrentController(TorrentProtocol protocol, TorrentStorage storage) {
 		this.protocol = protocol;
 		this.storage = storage;
+		// the thread only lives while there are torrents to be allocated
+		this.allocationExecutor = new ThreadPoolExecutor(1, 1, 60L,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						final Thread thread = new Thread(runnable,
+								"torrent4j-allocate");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.allocationExecutor.allowCoreThreadTimeOut(true);
 	}
 
 	/**
-	 * Creates a new controller with {@link NIOTorrentStorage} as default
+	 * Creates a new controller with {@link PooledNIOTorrentStorage} as default
 	 * storage.
 	 * 
 	 * @param protocol
 	 *            thw protocol to use
 	 */
 	public TorrentController(TorrentProtocol protocol) {
-		this(protocol, new NIOTorrentStorage());
+		this(protocol, new PooledNIOTorrentStorage());
 	}
 
 	/**
@@ -75,16 +122,17 @@ public class TorrentController {
 
 	/**
 	 * Creates a new controller with {@link PeerWireProtocol} as default
-	 * protocol and {@link NIOTorrentStorage} as default storage.
+	 * protocol and {@link PooledNIOTorrentStorage} as default storage.
 	 */
 	public TorrentController() {
-		this(new PeerWireProtocol(), new NIOTorrentStorage());
+		this(new PeerWireProtocol(), new PooledNIOTorrentStorage());
 	}
 
 	/**
 	 * Retrieves data from the storage and validate all piece information
 	 * already downloaded, if any. Automatically updates the torrent internal
-	 * state to match the real download progress.
+	 * state to match the real download progress. Data is read sequentially and
+	 * pieces are hashed in parallel, using all available processors.
 	 * 
 	 * @param torrent
 	 *            the torrent to check existing data
@@ -92,23 +140,73 @@ public class TorrentController {
 	 *             if any IO error occur
 	 */
 	public void checkExistingData(Torrent torrent) throws IOException {
-		for (final TorrentPiece piece : torrent.getPieces()) {
-			final Hash hash = storage.checksum(piece);
-			if (!piece.getHash().equals(hash))
-				continue;
-			torrent.getCompletedPieces().addPiece(piece);
+		final int threads = Runtime.getRuntime().availableProcessors();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final TorrentDataCheck check = new TorrentDataCheck(torrent,
+					storage, executor, threads * 2, null);
+			check.run();
+			check.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			executor.shutdown();
 		}
 	}
 
 	/**
-	 * Registers a new torrent on this controller
+	 * Starts checking the data already stored for the torrent in background.
+	 * Data is read sequentially on a new thread and pieces are hashed in
+	 * parallel on <code>executor</code>. The returned check can be used to
+	 * wait for the check to finish or to cancel it.
+	 * 
+	 * @param torrent
+	 *            the torrent to check existing data
+	 * @param executor
+	 *            the executor on which pieces are hashed
+	 * @param maximumInFlight
+	 *            the maximum amount of pieces read but not yet hashed
+	 * @param listener
+	 *            the listener notified of progress, may be <code>null</code>
+	 * @return the running {@link TorrentDataCheck}
+	 */
+	public TorrentDataCheck checkExistingData(Torrent torrent,
+			Executor executor, int maximumInFlight,
+			TorrentDataCheckListener listener) {
+		final TorrentDataCheck check = new TorrentDataCheck(torrent, storage,
+				executor, maximumInFlight, listener);
+		final Thread thread = new Thread(check, "torrent4j-check-"
+				+ torrent.getHash().getString());
+		thread.setDaemon(true);
+		thread.start();
+		return check;
+	}
+
+	/**
+	 * Registers a new torrent on this controller. The space for the torrent
+	 * data is allocated by the storage in background, one torrent at a time,
+	 * see {@link TorrentStorage#allocate(Torrent)}.
 	 * 
 	 * @param torrent
 	 *            the torrent to be registered
 	 */
-	public void registerTorrent(Torrent torrent) {
-		torrents.add(torrent);
+	public void registerTorrent(final Torrent torrent) {
+		loadResumeData(torrent);
 		torrent.setController(this);
+		torrents.put(getKey(torrent.getHash().getHash()), torrent);
+
+		// space is allocated in background, the torrent is usable meanwhile
+		allocationExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					storage.allocate(torrent);
+				} catch (IOException e) {
+					// the data is still allocated on demand, when written
+				}
+			}
+		});
 	}
 
 	/**
@@ -118,10 +216,140 @@ public class TorrentController {
 	 *            the torrent to be removed
 	 */
 	public void removeTorrent(Torrent torrent) {
-		torrents.remove(torrent);
+		torrents.remove(getKey(torrent.getHash().getHash()), torrent);
+		// released first, so that buffered data is written before the files
+		// are recorded
+		storage.release(torrent);
+		try {
+			saveResumeData(torrent);
+		} catch (IOException e) {
+		}
 		torrent.setController(null);
 	}
 
+	/**
+	 * Saves the torrent download state so that it can be restored on the next
+	 * {@link #registerTorrent(Torrent)}. This is only possible if a resume
+	 * directory has been configured and the storage is a
+	 * {@link FileAwareTorrentStorage}, possibly decorated by a
+	 * {@link WriteBackTorrentStorage} or a {@link CachedTorrentStorage}.
+	 * Otherwise, this method does nothing.
+	 * <p>
+	 * Blocks are marked as downloaded as soon as a
+	 * {@link WriteBackTorrentStorage} buffers them, so its buffered blocks of
+	 * the torrent are written first.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @throws IOException
+	 *             if any error occur while writing the buffered blocks or the
+	 *             resume data
+	 */
+	public void saveResumeData(Torrent torrent) throws IOException {
+		final FastResumeStore store = getResumeStore();
+		if (store == null)
+			return;
+		final WriteBackTorrentStorage writeBack = getWriteBackStorage();
+		if (writeBack != null && !writeBack.flush(torrent))
+			throw new IOException("Buffered blocks could not be written");
+		store.save(torrent, getFileStorage());
+	}
+
+	/**
+	 * Saves the download state of all torrents, ignoring errors
+	 */
+	private void saveResumeData() {
+		for (final Torrent torrent : torrents.values()) {
+			try {
+				saveResumeData(torrent);
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Restores the torrent download state saved by
+	 * {@link #saveResumeData(Torrent)}, if any. Only pieces stored on files
+	 * changed since the state was saved are checked again. If the resume data
+	 * can't be read, the torrent is left untouched and
+	 * {@link #checkExistingData(Torrent)} should be used instead.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @return <code>true</code> if the resume data was loaded
+	 */
+	private boolean loadResumeData(Torrent torrent) {
+		final FastResumeStore store = getResumeStore();
+		if (store == null)
+			return false;
+		final int threads = Runtime.getRuntime().availableProcessors();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<TorrentPiece> changed = store.load(torrent,
+					getFileStorage());
+			if (changed == null)
+				return false;
+			final TorrentDataCheck check = new TorrentDataCheck(torrent,
+					changed, storage, executor, threads * 2, null);
+			check.run();
+			check.await();
+			return true;
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return the fast resume store or <code>null</code> if fast resume is not
+	 *         enabled
+	 */
+	private FastResumeStore getResumeStore() {
+		if (config.getResumeDirectory() == null)
+			return null;
+		if (getFileStorage() == null)
+			return null;
+		return new FastResumeStore(config.getResumeDirectory());
+	}
+
+	/**
+	 * @return the storage in which data is stored on files, looking through
+	 *         the {@link WriteBackTorrentStorage} and
+	 *         {@link CachedTorrentStorage} decorators, or <code>null</code> if
+	 *         data is not stored on files
+	 */
+	private FileAwareTorrentStorage getFileStorage() {
+		TorrentStorage storage = this.storage;
+		while (!(storage instanceof FileAwareTorrentStorage)) {
+			if (storage instanceof WriteBackTorrentStorage)
+				storage = ((WriteBackTorrentStorage) storage).getStorage();
+			else if (storage instanceof CachedTorrentStorage)
+				storage = ((CachedTorrentStorage) storage).getStorage();
+			else
+				return null;
+		}
+		return (FileAwareTorrentStorage) storage;
+	}
+
+	/**
+	 * @return the {@link WriteBackTorrentStorage} decorating the storage, if
+	 *         any
+	 */
+	private WriteBackTorrentStorage getWriteBackStorage() {
+		TorrentStorage storage = this.storage;
+		while (!(storage instanceof WriteBackTorrentStorage)) {
+			if (storage instanceof CachedTorrentStorage)
+				storage = ((CachedTorrentStorage) storage).getStorage();
+			else
+				return null;
+		}
+		return (WriteBackTorrentStorage) storage;
+	}
+
 	/**
 	 * Tries to locate the torrent represented by <code>hash</code>.
 	 * 
@@ -130,11 +358,31 @@ public class TorrentController {
 	 * @return the torrent with the given <code>hash</code>, if any
 	 */
 	public Torrent findTorrent(Hash hash) {
-		for (final Torrent torrent : torrents) {
-			if (torrent.getHash().equals(hash))
-				return torrent;
-		}
-		return null;
+		if (hash.getType() != HashType.SHA1)
+			return null;
+		return findTorrent(hash.getHash());
+	}
+
+	/**
+	 * Tries to locate the torrent represented by the raw info-hash bytes, as
+	 * received on the handshake.
+	 * 
+	 * @param infoHash
+	 *            the SHA1 info-hash bytes
+	 * @return the torrent with the given <code>infoHash</code>, if any
+	 */
+	public Torrent findTorrent(byte[] infoHash) {
+		return torrents.get(getKey(infoHash));
+	}
+
+	/**
+	 * @param infoHash
+	 *            the info-hash bytes
+	 * @return the key under which the torrent is indexed. The bytes are not
+	 *         copied and must not be changed afterwards.
+	 */
+	private static ByteBuffer getKey(byte[] infoHash) {
+		return ByteBuffer.wrap(infoHash);
 	}
 
 	/**
@@ -144,14 +392,43 @@ public class TorrentController {
 	 *            the listen port
 	 */
 	public void start(int port) {
+		// when the queue is full, tasks are rejected: network threads must
+		// never run disk work themselves, they stop reading from the network
+		// and retry later instead
+		diskExecutor = new ThreadPoolExecutor(config.getDiskThreads(),
+				config.getDiskThreads(), 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(config.getDiskQueueSize()));
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		if (getResumeStore() != null) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					saveResumeData();
+				}
+			}, config.getResumeSaveInterval(), config.getResumeSaveInterval(),
+					TimeUnit.SECONDS);
+		}
 		protocol.start(this, port);
 	}
 
 	/**
-	 * Stops the controller
+	 * Stops the controller. Pending disk writes are completed and the storage
+	 * of all torrents is released, writing any buffered data, before their
+	 * download state is saved.
 	 */
 	public void stop() {
 		protocol.stop();
+		diskExecutor.shutdown();
+		scheduler.shutdown();
+		try {
+			diskExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (final Torrent torrent : torrents.values()) {
+			storage.release(torrent);
+		}
+		saveResumeData();
 	}
 
 	/**
@@ -176,9 +453,24 @@ public class TorrentController {
 	}
 
 	/**
-	 * @return this controller torrent list
+	 * @return the executor in which storage writes and piece verifications are
+	 *         performed
+	 */
+	public ExecutorService getDiskExecutor() {
+		return diskExecutor;
+	}
+
+	/**
+	 * @return the executor in which delayed and periodic tasks run
+	 */
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * @return a snapshot of this controller torrent list
 	 */
 	public List<Torrent> getTorrents() {
-		return torrents;
+		return new ArrayList<>(torrents.values());
 	}
 }
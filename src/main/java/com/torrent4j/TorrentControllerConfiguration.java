@@ -1,9 +1,31 @@
 package com.torrent4j;
 
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.nio.file.Path;
+
 import com.torrent4j.util.PeerIDGenerator;
 
 public class TorrentControllerConfiguration {
 	private String peerID = PeerIDGenerator.generateRandomPeerID();
+	private boolean zeroCopyUpload = false;
+	private ByteBufAllocator allocator = new PooledByteBufAllocator(true);
+	private int diskThreads = Runtime.getRuntime().availableProcessors();
+	private int diskQueueSize = 1024;
+	private long diskRetryDelay = 10;
+	private int maximumPendingWrites = 64;
+	private Path resumeDirectory;
+	private long resumeSaveInterval = 30;
+	private int minimumRequestQueueDepth = 4;
+	private int maximumRequestQueueDepth = 128;
+	private long requestTimeout = 60;
+	private int uploadSlots = 4;
+	private int maximumUploadQueueDepth = 250;
+	private int uploadReadAhead = 8;
+	private long chokeInterval = 10;
+	private long optimisticUnchokeInterval = 30;
+	private long haveBroadcastInterval = 500;
 
 	public String getPeerID() {
 		return peerID;
@@ -12,4 +34,140 @@ public class TorrentControllerConfiguration {
 	public void setPeerID(String peerID) {
 		this.peerID = peerID;
 	}
+
+	public boolean isZeroCopyUpload() {
+		return zeroCopyUpload;
+	}
+
+	public void setZeroCopyUpload(boolean zeroCopyUpload) {
+		this.zeroCopyUpload = zeroCopyUpload;
+	}
+
+	public ByteBufAllocator getAllocator() {
+		return allocator;
+	}
+
+	public void setAllocator(ByteBufAllocator allocator) {
+		this.allocator = allocator;
+	}
+
+	public int getDiskThreads() {
+		return diskThreads;
+	}
+
+	public void setDiskThreads(int diskThreads) {
+		this.diskThreads = diskThreads;
+	}
+
+	public int getDiskQueueSize() {
+		return diskQueueSize;
+	}
+
+	public void setDiskQueueSize(int diskQueueSize) {
+		this.diskQueueSize = diskQueueSize;
+	}
+
+	public long getDiskRetryDelay() {
+		return diskRetryDelay;
+	}
+
+	public void setDiskRetryDelay(long diskRetryDelay) {
+		this.diskRetryDelay = diskRetryDelay;
+	}
+
+	public int getMaximumPendingWrites() {
+		return maximumPendingWrites;
+	}
+
+	public void setMaximumPendingWrites(int maximumPendingWrites) {
+		this.maximumPendingWrites = maximumPendingWrites;
+	}
+
+	public Path getResumeDirectory() {
+		return resumeDirectory;
+	}
+
+	public void setResumeDirectory(Path resumeDirectory) {
+		this.resumeDirectory = resumeDirectory;
+	}
+
+	public long getResumeSaveInterval() {
+		return resumeSaveInterval;
+	}
+
+	public void setResumeSaveInterval(long resumeSaveInterval) {
+		this.resumeSaveInterval = resumeSaveInterval;
+	}
+
+	public int getMinimumRequestQueueDepth() {
+		return minimumRequestQueueDepth;
+	}
+
+	public void setMinimumRequestQueueDepth(int minimumRequestQueueDepth) {
+		this.minimumRequestQueueDepth = minimumRequestQueueDepth;
+	}
+
+	public int getMaximumRequestQueueDepth() {
+		return maximumRequestQueueDepth;
+	}
+
+	public void setMaximumRequestQueueDepth(int maximumRequestQueueDepth) {
+		this.maximumRequestQueueDepth = maximumRequestQueueDepth;
+	}
+
+	public long getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	public void setRequestTimeout(long requestTimeout) {
+		this.requestTimeout = requestTimeout;
+	}
+
+	public int getUploadSlots() {
+		return uploadSlots;
+	}
+
+	public void setUploadSlots(int uploadSlots) {
+		this.uploadSlots = uploadSlots;
+	}
+
+	public int getMaximumUploadQueueDepth() {
+		return maximumUploadQueueDepth;
+	}
+
+	public void setMaximumUploadQueueDepth(int maximumUploadQueueDepth) {
+		this.maximumUploadQueueDepth = maximumUploadQueueDepth;
+	}
+
+	public int getUploadReadAhead() {
+		return uploadReadAhead;
+	}
+
+	public void setUploadReadAhead(int uploadReadAhead) {
+		this.uploadReadAhead = uploadReadAhead;
+	}
+
+	public long getChokeInterval() {
+		return chokeInterval;
+	}
+
+	public void setChokeInterval(long chokeInterval) {
+		this.chokeInterval = chokeInterval;
+	}
+
+	public long getOptimisticUnchokeInterval() {
+		return optimisticUnchokeInterval;
+	}
+
+	public void setOptimisticUnchokeInterval(long optimisticUnchokeInterval) {
+		this.optimisticUnchokeInterval = optimisticUnchokeInterval;
+	}
+
+	public long getHaveBroadcastInterval() {
+		return haveBroadcastInterval;
+	}
+
+	public void setHaveBroadcastInterval(long haveBroadcastInterval) {
+		this.haveBroadcastInterval = haveBroadcastInterval;
+	}
 }
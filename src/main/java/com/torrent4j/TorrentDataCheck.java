@@ -0,0 +1,354 @@
+package com.torrent4j;
+
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.torrent4j.model.Torrent;
+import com.torrent4j.model.TorrentPiece;
+import com.torrent4j.storage.AbstractTorrentStorage;
+import com.torrent4j.storage.AsyncTorrentStorage;
+import com.torrent4j.storage.TorrentStorage;
+import com.torrent4j.util.Hash;
+
+/**
+ * Verifies data already stored for a torrent, marking valid pieces as
+ * complete. Pieces are read sequentially, in torrent order (which, for file
+ * based storages, is the order data is laid out on disk) by the thread
+ * running the check, and hashed in parallel on an {@link Executor}. The amount
+ * of pieces read but not yet hashed is bounded, so memory usage does not grow
+ * with the torrent size.
+ * <p>
+ * Storages that also implement {@link AsyncTorrentStorage} are read with
+ * {@link AsyncTorrentStorage#readAsync(Torrent, com.torrent4j.util.Range)},
+ * so that the reads of all pieces in flight are issued at once instead of
+ * one by one.
+ * <p>
+ * Other storages that are not an {@link AbstractTorrentStorage} might
+ * calculate checksums differently from reading the piece and hashing it. For
+ * those, the whole {@link TorrentStorage#checksum(TorrentPiece)} call is
+ * performed in parallel instead.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class TorrentDataCheck implements Runnable {
+	/**
+	 * The torrent being checked
+	 */
+	private final Torrent torrent;
+	/**
+	 * The pieces to be checked
+	 */
+	private final List<TorrentPiece> pieces;
+	/**
+	 * The storage in which the data is stored
+	 */
+	private final TorrentStorage storage;
+	/**
+	 * The executor on which pieces are hashed
+	 */
+	private final Executor executor;
+	/**
+	 * The listener notified of progress, may be <code>null</code>
+	 */
+	private final TorrentDataCheckListener listener;
+
+	/**
+	 * Limits the amount of pieces read but not yet hashed
+	 */
+	private final Semaphore inFlight;
+	/**
+	 * The number of pieces checked so far
+	 */
+	private final AtomicInteger checked = new AtomicInteger();
+	/**
+	 * Released once all pieces were checked (or the check was aborted)
+	 */
+	private final CountDownLatch finished = new CountDownLatch(1);
+	/**
+	 * Piece notifications hold the read lock and finishing the check holds
+	 * the write lock, so that no piece is notified after the check finished
+	 */
+	private final ReadWriteLock notifications = new ReentrantReadWriteLock();
+
+	/**
+	 * Whether the check has been cancelled
+	 */
+	private volatile boolean cancelled = false;
+	/**
+	 * The first error that occurred, if any
+	 */
+	private volatile IOException error;
+
+	/**
+	 * Creates a new instance
+	 * 
+	 * @param torrent
+	 *            the torrent to be checked
+	 * @param storage
+	 *            the storage in which the data is stored
+	 * @param executor
+	 *            the executor on which pieces are hashed
+	 * @param maximumInFlight
+	 *            the maximum amount of pieces read but not yet hashed
+	 * @param listener
+	 *            the listener notified of progress, may be <code>null</code>
+	 */
+	public TorrentDataCheck(Torrent torrent, TorrentStorage storage,
+			Executor executor, int maximumInFlight,
+			TorrentDataCheckListener listener) {
+		this(torrent, torrent.getPieces(), storage, executor, maximumInFlight,
+				listener);
+	}
+
+	/**
+	 * Creates a new instance that checks only some of the torrent pieces
+	 * 
+	 * @param torrent
+	 *            the torrent to be checked
+	 * @param pieces
+	 *            the pieces to be checked, in the order they should be read
+	 * @param storage
+	 *            the storage in which the data is stored
+	 * @param executor
+	 *            the executor on which pieces are hashed
+	 * @param maximumInFlight
+	 *            the maximum amount of pieces read but not yet hashed
+	 * @param listener
+	 *            the listener notified of progress, may be <code>null</code>
+	 */
+	public TorrentDataCheck(Torrent torrent, List<TorrentPiece> pieces,
+			TorrentStorage storage, Executor executor, int maximumInFlight,
+			TorrentDataCheckListener listener) {
+		this.torrent = torrent;
+		this.pieces = pieces;
+		this.storage = storage;
+		this.executor = executor;
+		this.inFlight = new Semaphore(maximumInFlight);
+		this.listener = listener;
+	}
+
+	/**
+	 * Reads all pieces, dispatching them to be hashed. Returns once all pieces
+	 * were read, but not necessarily hashed: use {@link #await()} for that.
+	 */
+	@Override
+	public void run() {
+		final int total = pieces.size();
+		if (total == 0) {
+			finish();
+			return;
+		}
+		try {
+			for (final TorrentPiece piece : pieces) {
+				inFlight.acquire();
+				if (cancelled || error != null) {
+					finish();
+					return;
+				}
+				if (storage instanceof AsyncTorrentStorage) {
+					((AsyncTorrentStorage) storage).readAsync(torrent,
+							piece.getTorrentRange()).addListener(
+							new FutureListener<ByteBuffer>() {
+								@Override
+								public void operationComplete(
+										Future<ByteBuffer> future) {
+									read(piece, future);
+								}
+							});
+				} else if (storage instanceof AbstractTorrentStorage) {
+					final ByteBuffer data = storage.read(torrent,
+							piece.getTorrentRange());
+					dispatch(new Runnable() {
+						@Override
+						public void run() {
+							Hash hash = null;
+							if (data != null && !cancelled)
+								hash = new Hash(piece.getHash().getType(),
+										piece.getHash().getType().hash(data));
+							checked(piece, hash);
+						}
+					});
+				} else {
+					dispatch(new Runnable() {
+						@Override
+						public void run() {
+							Hash hash = null;
+							try {
+								if (!cancelled)
+									hash = storage.checksum(piece);
+							} catch (IOException e) {
+								error = e;
+							}
+							checked(piece, hash);
+						}
+					});
+				}
+			}
+		} catch (IOException e) {
+			error = e;
+			finish();
+		} catch (InterruptedException e) {
+			cancelled = true;
+			finish();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Dispatches a piece read asynchronously to be hashed. Called on the
+	 * storage completion thread, which must not be kept busy hashing.
+	 * 
+	 * @param piece
+	 *            the piece read
+	 * @param future
+	 *            the completed read
+	 */
+	private void read(final TorrentPiece piece,
+			final Future<ByteBuffer> future) {
+		if (!future.isSuccess()) {
+			if (future.cause() instanceof IOException)
+				error = (IOException) future.cause();
+			else
+				error = new IOException(future.cause());
+			checked(piece, null);
+			return;
+		}
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				final ByteBuffer data = future.getNow();
+				Hash hash = null;
+				if (data != null && !cancelled)
+					hash = new Hash(piece.getHash().getType(), piece.getHash()
+							.getType().hash(data));
+				checked(piece, hash);
+			}
+		});
+	}
+
+	/**
+	 * Runs a hashing task on the executor. If the executor rejects it, for
+	 * instance because it has been shut down, the check fails.
+	 * 
+	 * @param task
+	 *            the hashing task
+	 */
+	private void dispatch(Runnable task) {
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			error = new IOException("Hashing task rejected", e);
+			inFlight.release();
+			finish();
+		}
+	}
+
+	/**
+	 * Records the result of a piece check
+	 * 
+	 * @param piece
+	 *            the checked piece
+	 * @param hash
+	 *            the hash calculated for the stored data, if any
+	 */
+	private void checked(TorrentPiece piece, Hash hash) {
+		inFlight.release();
+		final boolean valid = piece.getHash().equals(hash);
+		if (valid)
+			torrent.getCompletedPieces().addPiece(piece);
+		final int total = pieces.size();
+		final int count = checked.incrementAndGet();
+		if (listener != null && !cancelled) {
+			notifications.readLock().lock();
+			try {
+				// never notified once the check has finished
+				if (finished.getCount() != 0)
+					listener.pieceChecked(torrent, piece, valid, count, total);
+			} finally {
+				notifications.readLock().unlock();
+			}
+		}
+		if (count == total)
+			finish();
+	}
+
+	/**
+	 * Marks the check as finished, notifying the listener only once.
+	 */
+	private void finish() {
+		// waits for piece notifications in progress
+		notifications.writeLock().lock();
+		try {
+			if (finished.getCount() == 0)
+				return;
+			finished.countDown();
+		} finally {
+			notifications.writeLock().unlock();
+		}
+		if (listener != null)
+			listener.checkFinished(torrent, isCancelled());
+	}
+
+	/**
+	 * Cancels the check. Pieces already marked as complete remain so.
+	 */
+	public void cancel() {
+		cancelled = true;
+		// wake up the reader if waiting for hashing
+		inFlight.release();
+	}
+
+	/**
+	 * Waits for the check to finish
+	 * 
+	 * @throws IOException
+	 *             if any error occurred while reading data
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public void await() throws IOException, InterruptedException {
+		finished.await();
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * @return <code>true</code> if the check has been cancelled or aborted
+	 *         before checking all pieces
+	 */
+	public boolean isCancelled() {
+		return cancelled || error != null;
+	}
+
+	/**
+	 * @return <code>true</code> if the check is finished
+	 */
+	public boolean isDone() {
+		return finished.getCount() == 0;
+	}
+
+	/**
+	 * @return the number of pieces checked so far
+	 */
+	public int getCheckedPieces() {
+		return checked.get();
+	}
+
+	/**
+	 * @return the torrent being checked
+	 */
+	public Torrent getTorrent() {
+		return torrent;
+	}
+}
@@ -0,0 +1,42 @@
+package com.torrent4j;
+
+import com.torrent4j.model.Torrent;
+import com.torrent4j.model.TorrentPiece;
+
+/**
+ * Receives progress notifications from a {@link TorrentDataCheck}. Notifications
+ * are delivered from the hashing threads, possibly concurrently and not in
+ * piece order.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public interface TorrentDataCheckListener {
+	/**
+	 * Notifies that an piece has been checked
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param piece
+	 *            the checked piece
+	 * @param valid
+	 *            whether the piece data stored matches the piece hash
+	 * @param checked
+	 *            the number of pieces checked so far
+	 * @param total
+	 *            the number of pieces to be checked
+	 */
+	void pieceChecked(Torrent torrent, TorrentPiece piece, boolean valid,
+			int checked, int total);
+
+	/**
+	 * Notifies that the check has finished, either because all pieces were
+	 * checked, it was cancelled or an error occurred.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param cancelled
+	 *            whether the check has been cancelled before checking all
+	 *            pieces
+	 */
+	void checkFinished(Torrent torrent, boolean cancelled);
+}
@@ -12,8 +12,9 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.InvalidParameterException;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import com.torrent4j.TorrentController;
@@ -49,13 +50,35 @@ public class Torrent {
 	private final TorrentHash hash;
 
 	/**
-	 * The torrent pieces
+	 * The torrent pieces layout and state
 	 */
-	private final List<TorrentPiece> pieces = new ArrayList<>();
+	private final TorrentPieceTable pieceTable;
+	/**
+	 * The torrent pieces, created on demand from the piece table
+	 */
+	private final List<TorrentPiece> pieces = new AbstractList<TorrentPiece>() {
+		@Override
+		public TorrentPiece get(int index) {
+			final TorrentPiece piece = getPiece(index);
+			if (piece == null)
+				throw new IndexOutOfBoundsException("Piece: " + index);
+			return piece;
+		}
+
+		@Override
+		public int size() {
+			return pieceTable.getPieceCount();
+		}
+	};
 	/**
 	 * The torrent files
 	 */
 	private final List<TorrentFile> files = new ArrayList<>();
+	/**
+	 * The offset of each torrent file, in the same order as {@link #files}.
+	 * Used to locate files by binary search.
+	 */
+	private final long[] fileOffsets;
 
 	/**
 	 * The torrent traffic control
@@ -69,6 +92,10 @@ public class Torrent {
 	 * The torrent already downloaded pieces
 	 */
 	private final TorrentCompletePieces completedPieces;
+	/**
+	 * The number of peers that have each piece
+	 */
+	private final TorrentPieceAvailability availability;
 
 	/**
 	 * The current controller for this torrent object. If not attached to any
@@ -91,38 +118,25 @@ public class Torrent {
 
 		// parse file list
 		final MetadataInfo info = metadata.getInfo();
-		final byte[] pieceHashes = info.getPieceHashes();
-		final int pieces = pieceHashes.length / 20;
-		long piecesLength = 0;
-		for (int i = 0; i < pieces; i++) {
-			final byte[] hash = Arrays.copyOfRange(pieceHashes, i * 20,
-					(i + 1) * 20);
-			final int length = (int) (i + 1 == pieces ? (info.getLength() - piecesLength)
-					: info.getPieceLength());
-
-			this.pieces.add(new TorrentPiece(this, hash, i, info
-					.getPieceLength() * i, length));
-			piecesLength += length;
-		}
+		this.pieceTable = new TorrentPieceTable(this, info.getPieceHashes(),
+				info.getPieceLength(), info.getLength());
 
 		final Path torrentPath = Paths.get(info.getName());
+		this.fileOffsets = new long[info.getFiles().size()];
 		long offset = 0;
 		for (final MetadataFile metaFile : info.getFiles()) {
 			byte[] hash = null;
 			if (metaFile.getHash() != null)
 				hash = MD5.fromString(metaFile.getHash());
-			final List<TorrentPiece> filePieces = getPieces(Range
-					.getRangeByLength(offset, metaFile.getLength()));
 			final TorrentFile file = new TorrentFile(this, offset,
-					metaFile.getLength(), filePieces,
+					metaFile.getLength(),
 					torrentPath.resolve(metaFile.getFileName()), hash);
+			fileOffsets[files.size()] = offset;
 			files.add(file);
-			for (final TorrentPiece piece : filePieces) {
-				piece.addFile(file);
-			}
 			offset += metaFile.getLength();
 		}
 
+		availability = new TorrentPieceAvailability(this);
 		completedPieces = new TorrentCompletePieces(this);
 
 		// try {
@@ -181,12 +195,16 @@ public class Torrent {
 	 * @return the pieces inside the requested <code>range</code>
 	 */
 	public List<TorrentPiece> getPieces(Range range) {
-		final List<TorrentPiece> pieces = new ArrayList<>();
-		for (final TorrentPiece piece : this.pieces) {
-			if (piece.getTorrentRange().intersects(range))
-				pieces.add(piece);
-		}
-		return pieces;
+		final int count = pieceTable.getPieceCount();
+		if (range.isEmpty() || count == 0
+				|| range.getStart() >= pieceTable.getPieceOffset(count - 1)
+						+ pieceTable.getPieceLength(count - 1))
+			return Collections.emptyList();
+		final long pieceLength = pieceTable.getPieceLength(0);
+		final int first = (int) (range.getStart() / pieceLength);
+		final int last = (int) Math.min(range.getEnd() / pieceLength,
+				count - 1);
+		return pieces.subList(first, last + 1);
 	}
 
 	/**
@@ -195,9 +213,16 @@ public class Torrent {
 	 * @return the piece at the requested index, if any.
 	 */
 	public TorrentPiece getPiece(int index) {
-		if ((index + 1) > pieces.size())
+		if (index < 0 || index >= pieceTable.getPieceCount())
 			return null;
-		return pieces.get(index);
+		return new TorrentPiece(this, index);
+	}
+
+	/**
+	 * @return the torrent pieces layout and state
+	 */
+	public TorrentPieceTable getPieceTable() {
+		return pieceTable;
 	}
 
 	/**
@@ -209,30 +234,74 @@ public class Torrent {
 
 	/**
 	 * Determines all the files that contains at least one byte inside the
-	 * requested range.
+	 * requested range. Empty files placed between two of those files are also
+	 * part of the returned list.
 	 * 
 	 * @param range
 	 *            the range to search for files
 	 * @return the list of files inside the requested <code>range</code>
 	 */
 	public List<TorrentFile> getFiles(Range range) {
-		final List<TorrentFile> files = new ArrayList<>();
-		for (final TorrentFile file : this.files) {
-			if (file.getTorrentRange().intersects(range))
-				files.add(file);
+		if (range.isEmpty())
+			return Collections.emptyList();
+		final int first = getFileIndex(range.getStart());
+		if (first < 0)
+			return Collections.emptyList();
+		final int last = getFileIndex(Math.min(range.getEnd(),
+				getTorrentSize() - 1));
+		return files.subList(first, last + 1);
+	}
+
+	/**
+	 * Locates the file that contains the byte at the given torrent offset
+	 * using a binary search over the file offsets. Empty files never contain
+	 * any byte and are never returned.
+	 * 
+	 * @param offset
+	 *            the offset inside the torrent
+	 * @return the index of the file in {@link #getFiles()} or <code>-1</code>
+	 *         if the offset is outside the torrent
+	 */
+	public int getFileIndex(long offset) {
+		if (offset < 0 || fileOffsets.length == 0)
+			return -1;
+		// find the last file starting at or before the offset, which skips
+		// any empty file sharing its offset with the next one
+		int low = 0;
+		int high = fileOffsets.length - 1;
+		while (low < high) {
+			final int middle = (low + high + 1) >>> 1;
+			if (fileOffsets[middle] <= offset)
+				low = middle;
+			else
+				high = middle - 1;
 		}
-		return files;
+		final TorrentFile file = files.get(low);
+		if (offset >= file.getOffset() + file.getLength())
+			return -1;
+		return low;
+	}
+
+	/**
+	 * @param offset
+	 *            the offset inside the torrent
+	 * @return the file that contains the byte at the given offset, if any
+	 */
+	public TorrentFile getFile(long offset) {
+		final int index = getFileIndex(offset);
+		if (index < 0)
+			return null;
+		return files.get(index);
 	}
 
 	/**
 	 * @return the sum of all file sizes
 	 */
 	public long getTorrentSize() {
-		long size = 0;
-		for (final TorrentFile file : files) {
-			size += file.getLength();
-		}
-		return size;
+		if (files.isEmpty())
+			return 0;
+		final TorrentFile last = files.get(files.size() - 1);
+		return last.getOffset() + last.getLength();
 	}
 
 	/**
@@ -256,6 +325,13 @@ public class Torrent {
 		return completedPieces;
 	}
 
+	/**
+	 * @return the number of peers that have each piece
+	 */
+	public TorrentPieceAvailability getAvailability() {
+		return availability;
+	}
+
 	/**
 	 * @return this torrent's controller, if any.
 	 */
@@ -1,13 +1,18 @@
 package com.torrent4j.model;
 
+import java.util.BitSet;
+
 /**
  * An {@link AbstractTorrentPiecesContainer} dedicated to storing an
  * {@link Torrent} already downloaded pieces.
  * <p>
  * This instance overrides the {@link #addPiece(TorrentPiece)} and
  * {@link #removePiece(TorrentPiece)} in order to set
- * {@link TorrentPiece#setDownloaded(boolean)} accordingly, after that, the call
- * is redirected to the super implementation.
+ * {@link TorrentPiece#setDownloaded(boolean)} and
+ * {@link TorrentPieceAvailability#setMissing(int, boolean)} accordingly, after
+ * that, the call is redirected to the super implementation. Both are
+ * synchronized on this instance, so that {@link #getSnapshot()} is
+ * consistent with them.
  * 
  * @author <a href="http://www.rogiel.com">Rogiel</a>
  */
@@ -23,15 +28,24 @@ public class TorrentCompletePieces extends AbstractTorrentPiecesContainer {
 	}
 
 	@Override
-	public void addPiece(TorrentPiece piece) {
+	public synchronized void addPiece(TorrentPiece piece) {
 		super.addPiece(piece);
 		piece.setDownloaded(true);
+		torrent.getAvailability().setMissing(piece.getIndex(), false);
 	}
 
 	@Override
-	public void removePiece(TorrentPiece piece) {
+	public synchronized void removePiece(TorrentPiece piece) {
 		super.removePiece(piece);
 		piece.setDownloaded(false);
+		torrent.getAvailability().setMissing(piece.getIndex(), true);
 	}
 
+	/**
+	 * @return a copy of the completed pieces, not affected by pieces added or
+	 *         removed concurrently
+	 */
+	public synchronized BitSet getSnapshot() {
+		return (BitSet) bitSet.clone();
+	}
 }
@@ -36,11 +36,6 @@ public class TorrentFile {
 	 */
 	private final long length;
 
-	/**
-	 * The list of pieces that contains at least one byte of the file data
-	 */
-	private final List<TorrentPiece> pieces;
-
 	/**
 	 * The file path relative to the torrent
 	 */
@@ -55,20 +50,16 @@ public class TorrentFile {
 	 *            the file offset (relative to the torrent)
 	 * @param length
 	 *            the file length
-	 * @param pieces
-	 *            the list of pieces that contains at least one byte of the file
-	 *            data
 	 * @param path
 	 *            the file path relative to the torrent
 	 * @param hash
 	 *            the file hash, if present at the metadata file
 	 */
-	public TorrentFile(Torrent torrent, long offset, long length,
-			List<TorrentPiece> pieces, Path path, byte[] hash) {
+	public TorrentFile(Torrent torrent, long offset, long length, Path path,
+			byte[] hash) {
 		this.torrent = torrent;
 		this.offset = offset;
 		this.length = length;
-		this.pieces = pieces;
 		this.path = path;
 		if (hash != null)
 			this.hash = new TorrentFileHash(this, hash);
@@ -122,7 +113,7 @@ public class TorrentFile {
 	 *         data
 	 */
 	public List<TorrentPiece> getPieces() {
-		return pieces;
+		return torrent.getPieces(getTorrentRange());
 	}
 
 	/**
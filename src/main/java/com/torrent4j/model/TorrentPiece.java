@@ -1,42 +1,28 @@
 package com.torrent4j.model;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.List;
 
 import com.torrent4j.util.Range;
 
+/**
+ * An piece of the torrent. Instances are lightweight views over the torrent
+ * {@link TorrentPieceTable} and are created on demand: two instances
+ * representing the same piece are equal, but not necessarily the same object.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
 public class TorrentPiece {
 	private final Torrent torrent;
-	private final TorrentPieceHash hash;
-
 	private final int index;
-	private final int offset;
-	private final int length;
-
-	private final List<TorrentPieceBlock> blocks = new ArrayList<>();
-	private final List<TorrentFile> files = new ArrayList<>();
 
-	public TorrentPiece(Torrent torrent, byte[] hash, int index, int offset,
-			int length) {
+	public TorrentPiece(Torrent torrent, int index) {
 		this.torrent = torrent;
-		this.hash = new TorrentPieceHash(this, hash);
 		this.index = index;
-		this.offset = offset;
-		this.length = length;
-
-		final int blocks = (int) Math.ceil((double) length
-				/ TorrentPieceBlock.BLOCK_LENGTH);
-		for (int i = 0; i < blocks; i++) {
-			final int blockOffset = TorrentPieceBlock.BLOCK_LENGTH * i;
-			int len = TorrentPieceBlock.BLOCK_LENGTH;
-			if (i == blocks - 1 && length % TorrentPieceBlock.BLOCK_LENGTH != 0)
-				len = length - blockOffset;
-			this.blocks.add(new TorrentPieceBlock(this, blockOffset, len));
-		}
 	}
 
 	public TorrentPieceHash getHash() {
-		return hash;
+		return new TorrentPieceHash(this, getTable().getPieceHash(index));
 	}
 
 	public int getIndex() {
@@ -44,15 +30,15 @@ public class TorrentPiece {
 	}
 
 	public long getOffset() {
-		return offset;
+		return getTable().getPieceOffset(index);
 	}
 
 	public int getLength() {
-		return length;
+		return getTable().getPieceLength(index);
 	}
 
 	public Range getTorrentRange() {
-		return Range.getRangeByLength(offset, length);
+		return Range.getRangeByLength(getOffset(), getLength());
 	}
 
 	public boolean isFirst() {
@@ -60,56 +46,177 @@ public class TorrentPiece {
 	}
 
 	public boolean isLast() {
-		return torrent.getPieces().size() == index + 1;
+		return getTable().getPieceCount() == index + 1;
 	}
 
 	public List<TorrentPieceBlock> getBlocks() {
-		return blocks;
+		return new AbstractList<TorrentPieceBlock>() {
+			@Override
+			public TorrentPieceBlock get(int index) {
+				final TorrentPieceBlock block = getBlock(index);
+				if (block == null)
+					throw new IndexOutOfBoundsException("Block: " + index);
+				return block;
+			}
+
+			@Override
+			public int size() {
+				return getBlockCount();
+			}
+		};
+	}
+
+	/**
+	 * @return the number of blocks in this piece
+	 */
+	public int getBlockCount() {
+		return getTable().getBlockCount(index);
 	}
 
 	public TorrentPieceBlock getBlock(int offset, int length) {
-		for (final TorrentPieceBlock block : blocks) {
-			if (block.getOffset() == offset && block.getLength() == length)
-				return block;
-		}
-		return null;
+		if (offset < 0 || offset % TorrentPieceBlock.BLOCK_LENGTH != 0)
+			return null;
+		final TorrentPieceBlock block = getBlock(offset
+				/ TorrentPieceBlock.BLOCK_LENGTH);
+		if (block == null || block.getLength() != length)
+			return null;
+		return block;
+	}
+
+	/**
+	 * @param index
+	 *            the block index
+	 * @return the block or <code>null</code> if there is no such block
+	 */
+	public TorrentPieceBlock getBlock(int index) {
+		if (index < 0 || index >= getBlockCount())
+			return null;
+		final int offset = index * TorrentPieceBlock.BLOCK_LENGTH;
+		return new TorrentPieceBlock(this, offset, Math.min(
+				TorrentPieceBlock.BLOCK_LENGTH, getLength() - offset));
 	}
 
 	public TorrentPieceBlock getFirstBlock() {
-		return blocks.get(0);
+		return getBlock(0);
 	}
 
 	public TorrentPieceBlock getLastBlock() {
-		return blocks.get(blocks.size() - 1);
+		return getBlock(getBlockCount() - 1);
 	}
 
 	public TorrentPieceBlock getNextBlock(TorrentPieceBlock block) {
-		int next = blocks.indexOf(block) + 1;
-		if (blocks.size() == next)
-			return null;
-		return blocks.get(next);
+		return getBlock(block.getIndex() + 1);
+	}
+
+	/**
+	 * @return the first block neither downloaded nor requested from any peer,
+	 *         if any
+	 */
+	public TorrentPieceBlock getUnrequestedBlock() {
+		return getBlock(getTable().getUnrequestedBlock(index));
+	}
+
+	/**
+	 * @return <code>true</code> if any block is neither downloaded nor
+	 *         requested from any peer
+	 */
+	public boolean hasUnrequestedBlocks() {
+		return getTable().getUnrequestedBlock(index) >= 0;
 	}
 
 	public boolean isDownloaded() {
-		for (final TorrentPieceBlock block : blocks) {
-			if (!block.isDownloaded())
-				return false;
-		}
-		return true;
+		return getTable().isPieceDownloaded(index);
 	}
-	
+
 	public void setDownloaded(boolean downloaded) {
-		for (final TorrentPieceBlock block : blocks) {
-			block.setDownloaded(downloaded);
-		}
+		getTable().setPieceDownloaded(index, downloaded);
+	}
+
+	/**
+	 * @return the number of blocks already downloaded
+	 */
+	public int getDownloadedBlocks() {
+		return getTable().getDownloadedBlocks(index);
+	}
+
+	/**
+	 * @param index
+	 *            the block index
+	 * @return <code>true</code> if the block has been downloaded
+	 */
+	public boolean isBlockDownloaded(int index) {
+		return getTable().isBlockDownloaded(this.index, index);
+	}
+
+	/**
+	 * @param index
+	 *            the block index
+	 * @param downloaded
+	 *            whether the block has been downloaded
+	 */
+	public void setBlockDownloaded(int index, boolean downloaded) {
+		getTable().setBlockDownloaded(this.index, index, downloaded);
+	}
+
+	/**
+	 * Marks a block as downloaded. If this completes the piece, its hasher is
+	 * released and returned. This happens only once, so that only one thread
+	 * verifies the piece.
+	 * 
+	 * @param block
+	 *            the downloaded block
+	 * @return the piece hasher if the piece has just been completed,
+	 *         <code>null</code> otherwise
+	 */
+	public TorrentPieceHasher completeBlock(TorrentPieceBlock block) {
+		return getTable().completeBlock(index, block.getIndex());
+	}
+
+	/**
+	 * @param index
+	 *            the block index
+	 * @return the number of peers the block is requested from
+	 */
+	public int getBlockRequests(int index) {
+		return getTable().getBlockRequests(this.index, index);
+	}
+
+	/**
+	 * Registers that the block has been requested from a peer
+	 * 
+	 * @param index
+	 *            the block index
+	 */
+	public void addBlockRequest(int index) {
+		getTable().addBlockRequest(this.index, index);
+	}
+
+	/**
+	 * Registers that a request for the block is no longer outstanding
+	 * 
+	 * @param index
+	 *            the block index
+	 */
+	public void removeBlockRequest(int index) {
+		getTable().removeBlockRequest(this.index, index);
+	}
+
+	/**
+	 * @param block
+	 *            the block about to be digested
+	 * @return the piece hasher, or <code>null</code> if the block has already
+	 *         been downloaded
+	 */
+	public TorrentPieceHasher getHasher(TorrentPieceBlock block) {
+		return getTable().getHasher(index, block.getIndex());
+	}
+
+	public TorrentPieceHasher releaseHasher() {
+		return getTable().releaseHasher(index);
 	}
 
 	public List<TorrentFile> getFiles() {
-		return files;
-	}
-
-	/* package protected! */void addFile(TorrentFile file) {
-		files.add(file);
+		return torrent.getFiles(getTorrentRange());
 	}
 
 	public TorrentPiece getNextPiece() {
@@ -120,9 +227,28 @@ public class TorrentPiece {
 		return torrent;
 	}
 
+	private TorrentPieceTable getTable() {
+		return torrent.getPieceTable();
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * torrent.hashCode() + index;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof TorrentPiece))
+			return false;
+		final TorrentPiece other = (TorrentPiece) obj;
+		return torrent == other.torrent && index == other.index;
+	}
+
 	@Override
 	public String toString() {
-		return "TorrentPiece [torrent=" + torrent + ", hash=" + hash
-				+ ", index=" + index + ", length=" + length + "]";
+		return "TorrentPiece [torrent=" + torrent + ", hash=" + getHash()
+				+ ", index=" + index + ", length=" + getLength() + "]";
 	}
 }
@@ -0,0 +1,230 @@
+package com.torrent4j.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.torrent4j.model.peer.TorrentPeerPieces;
+
+/**
+ * Keeps track of how many peers in the swarm have each piece. Counts are
+ * updated incrementally as peer bitfields and <code>have</code> messages are
+ * received and as peers disconnect.
+ * <p>
+ * Pieces still missing are grouped into buckets by their availability, so
+ * that the rarest pieces can be found without looking at every piece of the
+ * torrent. Completed pieces are kept out of the buckets, as there is no need
+ * to select them again.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class TorrentPieceAvailability {
+	/**
+	 * The torrent
+	 */
+	private final Torrent torrent;
+	/**
+	 * The number of peers that have each piece
+	 */
+	private final int[] availability;
+	/**
+	 * The position of each piece inside its bucket, <code>-1</code> if the
+	 * piece is not in any bucket (because it is complete)
+	 */
+	private final int[] positions;
+	/**
+	 * The missing pieces, grouped by availability
+	 */
+	private final List<Bucket> buckets = new ArrayList<>();
+
+	/**
+	 * Creates a new instance, with all pieces missing and unavailable
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 */
+	public TorrentPieceAvailability(Torrent torrent) {
+		this.torrent = torrent;
+		final int pieces = torrent.getPieces().size();
+		this.availability = new int[pieces];
+		this.positions = new int[pieces];
+		for (int i = 0; i < pieces; i++) {
+			positions[i] = getBucket(0).add(i);
+		}
+	}
+
+	/**
+	 * Registers that one more peer has the piece
+	 * 
+	 * @param index
+	 *            the piece index
+	 */
+	public synchronized void increment(int index) {
+		if (index < 0 || index >= availability.length)
+			return;
+		move(index, availability[index] + 1);
+	}
+
+	/**
+	 * Registers that one less peer has the piece
+	 * 
+	 * @param index
+	 *            the piece index
+	 */
+	public synchronized void decrement(int index) {
+		if (index < 0 || index >= availability.length
+				|| availability[index] == 0)
+			return;
+		move(index, availability[index] - 1);
+	}
+
+	/**
+	 * Sets whether the piece is still missing, so that it can be selected
+	 * 
+	 * @param index
+	 *            the piece index
+	 * @param missing
+	 *            whether the piece is missing
+	 */
+	public synchronized void setMissing(int index, boolean missing) {
+		if (missing && positions[index] < 0) {
+			positions[index] = getBucket(availability[index]).add(index);
+		} else if (!missing && positions[index] >= 0) {
+			remove(index);
+			positions[index] = -1;
+		}
+	}
+
+	/**
+	 * Selects one of the rarest pieces the peer has and we are missing, which
+	 * still has blocks to be requested. Between equally rare pieces, one is
+	 * chosen randomly.
+	 * 
+	 * @param peerPieces
+	 *            the pieces the peer has
+	 * @return the selected piece, if any
+	 */
+	public synchronized TorrentPiece selectRarest(TorrentPeerPieces peerPieces) {
+		// pieces in the first bucket are not available from any peer
+		for (int i = 1; i < buckets.size(); i++) {
+			final Bucket bucket = buckets.get(i);
+			if (bucket.size == 0)
+				continue;
+			final int start = ThreadLocalRandom.current().nextInt(bucket.size);
+			for (int j = 0; j < bucket.size; j++) {
+				final int index = bucket.pieces[(start + j) % bucket.size];
+				if (!peerPieces.getBitSet().get(index))
+					continue;
+				final TorrentPiece piece = torrent.getPiece(index);
+				if (piece.hasUnrequestedBlocks())
+					return piece;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param index
+	 *            the piece index
+	 * @return the number of peers that have the piece
+	 */
+	public synchronized int getAvailability(int index) {
+		return availability[index];
+	}
+
+	/**
+	 * Moves a piece into another availability count, and bucket if the piece
+	 * is missing
+	 * 
+	 * @param index
+	 *            the piece index
+	 * @param count
+	 *            the new availability count
+	 */
+	private void move(int index, int count) {
+		if (positions[index] >= 0) {
+			remove(index);
+			positions[index] = getBucket(count).add(index);
+		}
+		availability[index] = count;
+	}
+
+	/**
+	 * Removes a piece from its current bucket
+	 * 
+	 * @param index
+	 *            the piece index
+	 */
+	private void remove(int index) {
+		final Bucket bucket = buckets.get(availability[index]);
+		final int moved = bucket.remove(positions[index]);
+		if (moved >= 0)
+			positions[moved] = positions[index];
+	}
+
+	/**
+	 * @param count
+	 *            the availability count
+	 * @return the bucket for pieces with the given availability
+	 */
+	private Bucket getBucket(int count) {
+		while (buckets.size() <= count) {
+			buckets.add(new Bucket());
+		}
+		return buckets.get(count);
+	}
+
+	/**
+	 * @return the torrent
+	 */
+	public Torrent getTorrent() {
+		return torrent;
+	}
+
+	/**
+	 * An unordered set of piece indexes with constant time insertion and
+	 * removal
+	 * 
+	 * @author <a href="http://www.rogiel.com">Rogiel</a>
+	 */
+	private static class Bucket {
+		/**
+		 * The piece indexes
+		 */
+		private int[] pieces = new int[16];
+		/**
+		 * The number of pieces in the bucket
+		 */
+		private int size = 0;
+
+		/**
+		 * @param index
+		 *            the piece index
+		 * @return the piece position in the bucket
+		 */
+		private int add(int index) {
+			if (size == pieces.length)
+				pieces = Arrays.copyOf(pieces, size * 2);
+			pieces[size] = index;
+			return size++;
+		}
+
+		/**
+		 * Removes the piece at the given position, moving the last piece in
+		 * its place
+		 * 
+		 * @param position
+		 *            the position to be removed
+		 * @return the index of the piece moved into <code>position</code> or
+		 *         <code>-1</code> if no piece was moved
+		 */
+		private int remove(int position) {
+			size--;
+			if (position == size)
+				return -1;
+			pieces[position] = pieces[size];
+			return pieces[position];
+		}
+	}
+}
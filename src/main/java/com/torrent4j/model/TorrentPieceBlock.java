@@ -2,6 +2,13 @@ package com.torrent4j.model;
 
 import com.torrent4j.util.Range;
 
+/**
+ * An block of a {@link TorrentPiece}, the unit in which data is requested from
+ * peers. Like pieces, blocks are lightweight views created on demand and their
+ * state is stored in the torrent {@link TorrentPieceTable}.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
 public class TorrentPieceBlock {
 	public static final int BLOCK_LENGTH = 16 * 1024;
 
@@ -9,7 +16,6 @@ public class TorrentPieceBlock {
 	private final int offset;
 	private final int length;
 
-	private boolean downloaded = false;
 
 	public TorrentPieceBlock(TorrentPiece piece, int offset, int length) {
 		this.piece = piece;
@@ -17,6 +23,13 @@ public class TorrentPieceBlock {
 		this.length = length;
 	}
 
+	/**
+	 * @return the block index inside the piece
+	 */
+	public int getIndex() {
+		return offset / BLOCK_LENGTH;
+	}
+
 	public int getOffset() {
 		return offset;
 	}
@@ -54,11 +67,41 @@ public class TorrentPieceBlock {
 	}
 
 	public boolean isDownloaded() {
-		return downloaded;
+		return piece.isBlockDownloaded(getIndex());
 	}
 
 	public void setDownloaded(boolean downloaded) {
-		this.downloaded = downloaded;
+		piece.setBlockDownloaded(getIndex(), downloaded);
+	}
+
+	/**
+	 * @return <code>true</code> if the block is currently requested from any
+	 *         peer
+	 */
+	public boolean isRequested() {
+		return piece.getBlockRequests(getIndex()) > 0;
+	}
+
+	/**
+	 * @return the number of peers this block is currently requested from
+	 */
+	public int getRequests() {
+		return piece.getBlockRequests(getIndex());
+	}
+
+	/**
+	 * Registers that the block has been requested from a peer
+	 */
+	public void addRequest() {
+		piece.addBlockRequest(getIndex());
+	}
+
+	/**
+	 * Registers that a request for this block was either fulfilled, cancelled
+	 * or dropped
+	 */
+	public void removeRequest() {
+		piece.removeBlockRequest(getIndex());
 	}
 
 	public TorrentPieceBlock getNextBlock() {
@@ -73,6 +116,21 @@ public class TorrentPieceBlock {
 		return piece.getTorrent();
 	}
 
+	@Override
+	public int hashCode() {
+		return 31 * piece.hashCode() + offset;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof TorrentPieceBlock))
+			return false;
+		final TorrentPieceBlock other = (TorrentPieceBlock) obj;
+		return piece.equals(other.piece) && offset == other.offset;
+	}
+
 	@Override
 	public String toString() {
 		return "TorrentPieceBlock [piece=" + piece + ", offset=" + offset
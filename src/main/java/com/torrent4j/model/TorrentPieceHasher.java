@@ -0,0 +1,137 @@
+package com.torrent4j.model;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.torrent4j.util.Hash;
+
+/**
+ * Incrementally calculates the hash of a {@link TorrentPiece} while its blocks
+ * are being downloaded, so that the piece does not need to be read back from
+ * the storage once complete.
+ * <p>
+ * Blocks are digested in order. Blocks that arrive out of order are kept in
+ * memory until all blocks before them have arrived, up to
+ * {@link #MAXIMUM_BUFFERED_BYTES}. If that limit is reached, incremental
+ * hashing is abandoned for this piece and {@link #digest()} returns
+ * <code>null</code>: the piece checksum must then be calculated from the
+ * storage.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class TorrentPieceHasher {
+	/**
+	 * The maximum amount of out of order data kept in memory per piece
+	 */
+	public static final int MAXIMUM_BUFFERED_BYTES = 1024 * 1024;
+
+	/**
+	 * The piece being hashed
+	 */
+	private final TorrentPiece piece;
+	/**
+	 * The message digest
+	 */
+	private final MessageDigest digest;
+
+	/**
+	 * The offset of the next byte to be digested
+	 */
+	private int hashedOffset = 0;
+	/**
+	 * The out of order blocks, indexed by their offset
+	 */
+	private final Map<Integer, byte[]> pending = new TreeMap<>();
+	/**
+	 * The amount of out of order data kept in memory
+	 */
+	private int pendingBytes = 0;
+	/**
+	 * Whether the incremental hashing has been abandoned
+	 */
+	private boolean abandoned = false;
+
+	/**
+	 * Creates a new instance
+	 * 
+	 * @param piece
+	 *            the piece to be hashed
+	 */
+	public TorrentPieceHasher(TorrentPiece piece) {
+		this.piece = piece;
+		this.digest = piece.getHash().getType().createDigest();
+		if (digest == null)
+			abandoned = true;
+	}
+
+	/**
+	 * Digests a block of the piece.
+	 * 
+	 * @param offset
+	 *            the block offset inside the piece
+	 * @param data
+	 *            the block data. Its position is not modified.
+	 */
+	public synchronized void update(int offset, ByteBuffer data) {
+		if (abandoned || offset < hashedOffset)
+			return;
+		if (offset > hashedOffset) {
+			if (pending.containsKey(offset))
+				return;
+			if (pendingBytes + data.remaining() > MAXIMUM_BUFFERED_BYTES) {
+				abandon();
+				return;
+			}
+			final byte[] block = new byte[data.remaining()];
+			data.duplicate().get(block);
+			pending.put(offset, block);
+			pendingBytes += block.length;
+			return;
+		}
+
+		hashedOffset += data.remaining();
+		digest.update(data.duplicate());
+
+		byte[] next;
+		while ((next = pending.remove(hashedOffset)) != null) {
+			pendingBytes -= next.length;
+			hashedOffset += next.length;
+			digest.update(next);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if all piece data has been digested
+	 */
+	public synchronized boolean isComplete() {
+		return !abandoned && hashedOffset == piece.getLength();
+	}
+
+	/**
+	 * @return the piece hash or <code>null</code> if it could not be
+	 *         calculated incrementally
+	 */
+	public synchronized Hash digest() {
+		if (!isComplete())
+			return null;
+		return new Hash(piece.getHash().getType(), digest.digest());
+	}
+
+	/**
+	 * Abandons incremental hashing and releases all buffered data
+	 */
+	private void abandon() {
+		abandoned = true;
+		pending.clear();
+		pendingBytes = 0;
+	}
+
+	/**
+	 * @return the piece being hashed
+	 */
+	public TorrentPiece getPiece() {
+		return piece;
+	}
+}
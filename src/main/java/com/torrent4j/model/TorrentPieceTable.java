@@ -0,0 +1,566 @@
+package com.torrent4j.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the layout and download state of all pieces and blocks of a torrent
+ * in a compact form. {@link TorrentPiece} and {@link TorrentPieceBlock}
+ * objects are lightweight views over this table, created on demand, so that
+ * torrents with millions of blocks do not need one object per block.
+ * <p>
+ * Piece hashes are kept in the metadata hash array, block state is kept in
+ * bitsets indexed by the torrent-wide block index and request counts are only
+ * stored for blocks currently requested. All state changes are guarded by
+ * this table monitor.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class TorrentPieceTable {
+	/**
+	 * The length of each piece hash
+	 */
+	private static final int HASH_LENGTH = 20;
+
+	/**
+	 * The torrent
+	 */
+	private final Torrent torrent;
+	/**
+	 * All piece hashes, concatenated
+	 */
+	private final byte[] pieceHashes;
+	/**
+	 * The length of all pieces but the last
+	 */
+	private final int pieceLength;
+	/**
+	 * The torrent length
+	 */
+	private final long length;
+	/**
+	 * The number of pieces
+	 */
+	private final int pieceCount;
+	/**
+	 * The number of blocks in all pieces but the last
+	 */
+	private final int blocksPerPiece;
+
+	/**
+	 * The blocks already downloaded, indexed by torrent-wide block index
+	 */
+	private final BitSet downloadedBlocks = new BitSet();
+	/**
+	 * The number of blocks already downloaded in each piece
+	 */
+	private final int[] downloadedCount;
+	/**
+	 * The blocks requested from at least one peer, indexed by torrent-wide
+	 * block index
+	 */
+	private final BitSet requestedBlocks = new BitSet();
+	/**
+	 * The number of peers each requested block is requested from, only for
+	 * the blocks set in {@link #requestedBlocks}
+	 */
+	private final RequestCounts blockRequests = new RequestCounts();
+	/**
+	 * The number of blocks neither downloaded nor requested from any peer
+	 */
+	private int unrequestedBlocks;
+	/**
+	 * The hashers of pieces being downloaded, indexed by piece index
+	 */
+	private final Map<Integer, TorrentPieceHasher> hashers = new HashMap<>();
+
+	/**
+	 * Creates a new instance
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param pieceHashes
+	 *            all piece hashes, concatenated
+	 * @param pieceLength
+	 *            the length of all pieces but the last
+	 * @param length
+	 *            the torrent length
+	 */
+	public TorrentPieceTable(Torrent torrent, byte[] pieceHashes,
+			int pieceLength, long length) {
+		this.torrent = torrent;
+		this.pieceHashes = pieceHashes;
+		this.pieceLength = pieceLength;
+		this.length = length;
+		this.pieceCount = pieceHashes.length / HASH_LENGTH;
+		this.blocksPerPiece = countBlocks(pieceLength);
+		this.downloadedCount = new int[pieceCount];
+		if (pieceCount > 0)
+			this.unrequestedBlocks = getBlockIndex(pieceCount - 1, 0)
+					+ getBlockCount(pieceCount - 1);
+	}
+
+	/**
+	 * @return the number of pieces
+	 */
+	public int getPieceCount() {
+		return pieceCount;
+	}
+
+	/**
+	 * @param piece
+	 *            the piece index
+	 * @return the piece offset inside the torrent
+	 */
+	public long getPieceOffset(int piece) {
+		return (long) pieceLength * piece;
+	}
+
+	/**
+	 * @param piece
+	 *            the piece index
+	 * @return the piece length
+	 */
+	public int getPieceLength(int piece) {
+		if (piece + 1 == pieceCount)
+			return (int) (length - getPieceOffset(piece));
+		return pieceLength;
+	}
+
+	/**
+	 * @param piece
+	 *            the piece index
+	 * @return the piece hash
+	 */
+	public byte[] getPieceHash(int piece) {
+		return Arrays.copyOfRange(pieceHashes, piece * HASH_LENGTH,
+				(piece + 1) * HASH_LENGTH);
+	}
+
+	/**
+	 * @param piece
+	 *            the piece index
+	 * @return the number of blocks in the piece
+	 */
+	public int getBlockCount(int piece) {
+		if (piece + 1 == pieceCount)
+			return countBlocks(getPieceLength(piece));
+		return blocksPerPiece;
+	}
+
+	/**
+	 * @param piece
+	 *            the piece index
+	 * @param block
+	 *            the block index
+	 * @return <code>true</code> if the block has been downloaded
+	 */
+	public synchronized boolean isBlockDownloaded(int piece, int block) {
+		return downloadedBlocks.get(getBlockIndex(piece, block));
+	}
+
+	/**
+	 * @param piece
+	 *            the piece index
+	 * @param block
+	 *            the block index
+	 * @param downloaded
+	 *            whether the block has been downloaded
+	 * @return <code>true</code> if the block state changed
+	 */
+	public synchronized boolean setBlockDownloaded(int piece, int block,
+			boolean downloaded) {
+		final int index = getBlockIndex(piece, block);
+		if (downloadedBlocks.get(index) == downloaded)
+			return false;
+		final boolean unrequested = isUnrequested(index);
+		downloadedBlocks.set(index, downloaded);
+		downloadedCount[piece] += downloaded ? 1 : -1;
+		updateUnrequested(index, unrequested);
+		return true;
+	}
+
+	/**
+	 * Marks a block as downloaded. If this completes the piece, its hasher is
+	 * removed from the table and returned. This happens only once per piece,
+	 * so only the caller that completed the piece verifies it.
+	 * 
+	 * @param piece
+	 *            the piece index
+	 * @param block
+	 *            the block index
+	 * @return the piece hasher if the piece has just been completed,
+	 *         <code>null</code> otherwise
+	 */
+	public synchronized TorrentPieceHasher completeBlock(int piece, int block) {
+		if (!setBlockDownloaded(piece, block, true)
+				|| !isPieceDownloaded(piece))
+			return null;
+		final TorrentPieceHasher hasher = hashers.remove(piece);
+		if (hasher != null)
+			return hasher;
+		// no data was hashed, the checksum must be calculated from storage
+		return new TorrentPieceHasher(torrent.getPiece(piece));
+	}
+
+	/**
+	 * @param piece
+	 *            the piece index
+	 * @return <code>true</code> if all piece blocks have been downloaded
+	 */
+	public synchronized boolean isPieceDownloaded(int piece) {
+		return downloadedCount[piece] == getBlockCount(piece);
+	}
+
+	/**
+	 * @param piece
+	 *            the piece index
+	 * @param downloaded
+	 *            whether all piece blocks have been downloaded
+	 */
+	public synchronized void setPieceDownloaded(int piece, boolean downloaded) {
+		final int first = getBlockIndex(piece, 0);
+		final int count = getBlockCount(piece);
+		for (int i = first; i < first + count; i++) {
+			final boolean unrequested = isUnrequested(i);
+			downloadedBlocks.set(i, downloaded);
+			updateUnrequested(i, unrequested);
+		}
+		downloadedCount[piece] = downloaded ? count : 0;
+	}
+
+	/**
+	 * @param piece
+	 *            the piece index
+	 * @return the number of blocks already downloaded in the piece
+	 */
+	public synchronized int getDownloadedBlocks(int piece) {
+		return downloadedCount[piece];
+	}
+
+	/**
+	 * @param piece
+	 *            the piece index
+	 * @return the index of the first block neither downloaded nor requested,
+	 *         <code>-1</code> if there is none
+	 */
+	public synchronized int getUnrequestedBlock(int piece) {
+		final int first = getBlockIndex(piece, 0);
+		final int end = first + getBlockCount(piece);
+		int i = downloadedBlocks.nextClearBit(first);
+		while (i < end) {
+			if (!requestedBlocks.get(i))
+				return i - first;
+			i = downloadedBlocks.nextClearBit(i + 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * @return <code>true</code> if any block of the torrent is neither
+	 *         downloaded nor requested from any peer
+	 */
+	public synchronized boolean hasUnrequestedBlocks() {
+		return unrequestedBlocks > 0;
+	}
+
+	/**
+	 * Iterates over the blocks requested from at least one peer and not yet
+	 * downloaded, which are the only candidates for endgame requests.
+	 * 
+	 * @param from
+	 *            the torrent-wide block index to start from
+	 * @return the torrent-wide index of the next such block, <code>-1</code>
+	 *         if there is none
+	 */
+	public synchronized int nextPendingBlock(int from) {
+		int i = requestedBlocks.nextSetBit(from);
+		while (i >= 0 && downloadedBlocks.get(i))
+			i = requestedBlocks.nextSetBit(i + 1);
+		return i;
+	}
+
+	/**
+	 * @param index
+	 *            the torrent-wide block index
+	 * @return the block
+	 */
+	public TorrentPieceBlock getBlock(int index) {
+		return torrent.getPiece(index / blocksPerPiece).getBlock(
+				index % blocksPerPiece);
+	}
+
+	/**
+	 * @param piece
+	 *            the piece index
+	 * @param block
+	 *            the block index
+	 * @return the number of peers the block is requested from
+	 */
+	public synchronized int getBlockRequests(int piece, int block) {
+		final int index = getBlockIndex(piece, block);
+		if (!requestedBlocks.get(index))
+			return 0;
+		return blockRequests.get(index);
+	}
+
+	/**
+	 * Registers that the block has been requested from a peer
+	 * 
+	 * @param piece
+	 *            the piece index
+	 * @param block
+	 *            the block index
+	 */
+	public synchronized void addBlockRequest(int piece, int block) {
+		final int index = getBlockIndex(piece, block);
+		blockRequests.add(index, 1);
+		final boolean unrequested = isUnrequested(index);
+		requestedBlocks.set(index);
+		updateUnrequested(index, unrequested);
+	}
+
+	/**
+	 * Registers that a request for the block is no longer outstanding
+	 * 
+	 * @param piece
+	 *            the piece index
+	 * @param block
+	 *            the block index
+	 */
+	public synchronized void removeBlockRequest(int piece, int block) {
+		final int index = getBlockIndex(piece, block);
+		if (!requestedBlocks.get(index))
+			return;
+		if (blockRequests.add(index, -1) == 0) {
+			requestedBlocks.clear(index);
+			updateUnrequested(index, false);
+		}
+	}
+
+	/**
+	 * Returns the hasher the block data must be digested into. The downloaded
+	 * check and the lookup happen atomically, so that a duplicate block
+	 * arriving after the piece has been completed does not create a hasher
+	 * that would never be released.
+	 * 
+	 * @param piece
+	 *            the piece index
+	 * @param block
+	 *            the block index
+	 * @return the piece hasher, created if necessary, or <code>null</code> if
+	 *         the block has already been downloaded
+	 */
+	public synchronized TorrentPieceHasher getHasher(int piece, int block) {
+		if (downloadedBlocks.get(getBlockIndex(piece, block)))
+			return null;
+		TorrentPieceHasher hasher = hashers.get(piece);
+		if (hasher == null) {
+			hasher = new TorrentPieceHasher(torrent.getPiece(piece));
+			hashers.put(piece, hasher);
+		}
+		return hasher;
+	}
+
+	/**
+	 * @param piece
+	 *            the piece index
+	 * @return the released piece hasher, if any
+	 */
+	public synchronized TorrentPieceHasher releaseHasher(int piece) {
+		return hashers.remove(piece);
+	}
+
+	/**
+	 * @param index
+	 *            the torrent-wide block index
+	 * @return <code>true</code> if the block is neither downloaded nor
+	 *         requested
+	 */
+	private boolean isUnrequested(int index) {
+		return !downloadedBlocks.get(index) && !requestedBlocks.get(index);
+	}
+
+	/**
+	 * Updates the number of unrequested blocks after a block state change
+	 * 
+	 * @param index
+	 *            the torrent-wide block index
+	 * @param unrequested
+	 *            whether the block was unrequested before the change
+	 */
+	private void updateUnrequested(int index, boolean unrequested) {
+		if (unrequested != isUnrequested(index))
+			unrequestedBlocks += unrequested ? -1 : 1;
+	}
+
+	/**
+	 * @param piece
+	 *            the piece index
+	 * @param block
+	 *            the block index inside the piece
+	 * @return the torrent-wide block index
+	 */
+	private int getBlockIndex(int piece, int block) {
+		return piece * blocksPerPiece + block;
+	}
+
+	/**
+	 * @param length
+	 *            the piece length
+	 * @return the number of blocks in a piece with the given length
+	 */
+	private static int countBlocks(int length) {
+		return (length + TorrentPieceBlock.BLOCK_LENGTH - 1)
+				/ TorrentPieceBlock.BLOCK_LENGTH;
+	}
+
+	/**
+	 * @return the torrent
+	 */
+	public Torrent getTorrent() {
+		return torrent;
+	}
+
+	/**
+	 * Maps torrent-wide block indexes to request counts using open addressing
+	 * with linear probing over primitive arrays, so that counting requests
+	 * does not box any value. Entries are removed once their count drops to
+	 * zero.
+	 * 
+	 * @author <a href="http://www.rogiel.com">Rogiel</a>
+	 */
+	private static class RequestCounts {
+		/**
+		 * The initial number of slots, must be a power of two
+		 */
+		private static final int INITIAL_CAPACITY = 64;
+
+		/**
+		 * The block index plus one of each slot, <code>0</code> if empty
+		 */
+		private int[] keys = new int[INITIAL_CAPACITY];
+		/**
+		 * The request count of each slot
+		 */
+		private int[] counts = new int[INITIAL_CAPACITY];
+		/**
+		 * The number of slots in use
+		 */
+		private int size;
+
+		/**
+		 * @param index
+		 *            the torrent-wide block index
+		 * @return the request count, <code>0</code> if not mapped
+		 */
+		private int get(int index) {
+			final int slot = find(keys, index + 1);
+			return keys[slot] == 0 ? 0 : counts[slot];
+		}
+
+		/**
+		 * Adds <code>delta</code> to the request count of a block, removing
+		 * it when the count drops to zero
+		 * 
+		 * @param index
+		 *            the torrent-wide block index
+		 * @param delta
+		 *            the value to add to the count
+		 * @return the new request count
+		 */
+		private int add(int index, int delta) {
+			int slot = find(keys, index + 1);
+			if (keys[slot] == 0) {
+				if (delta <= 0)
+					return 0;
+				if ((size + 1) * 2 > keys.length) {
+					resize(keys.length * 2);
+					slot = find(keys, index + 1);
+				}
+				keys[slot] = index + 1;
+				size++;
+			}
+			final int count = counts[slot] += delta;
+			if (count <= 0)
+				remove(slot);
+			return Math.max(count, 0);
+		}
+
+		/**
+		 * Empties a slot, shifting back the entries probed past it
+		 * 
+		 * @param slot
+		 *            the slot to empty
+		 */
+		private void remove(int slot) {
+			final int mask = keys.length - 1;
+			int hole = slot;
+			int next = (hole + 1) & mask;
+			while (keys[next] != 0) {
+				final int home = hash(keys[next]) & mask;
+				// the entry can fill the hole if its home slot does not lie
+				// cyclically between the hole and itself
+				if (((next - home) & mask) >= ((next - hole) & mask)) {
+					keys[hole] = keys[next];
+					counts[hole] = counts[next];
+					hole = next;
+				}
+				next = (next + 1) & mask;
+			}
+			keys[hole] = 0;
+			counts[hole] = 0;
+			size--;
+		}
+
+		/**
+		 * Rehashes all entries into a table with the given number of slots
+		 * 
+		 * @param capacity
+		 *            the new number of slots, must be a power of two
+		 */
+		private void resize(int capacity) {
+			final int[] oldKeys = keys;
+			final int[] oldCounts = counts;
+			keys = new int[capacity];
+			counts = new int[capacity];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] == 0)
+					continue;
+				final int slot = find(keys, oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				counts[slot] = oldCounts[i];
+			}
+		}
+
+		/**
+		 * @param keys
+		 *            the slot keys
+		 * @param key
+		 *            the key
+		 * @return the slot holding the key or the empty slot it would be
+		 *         stored at
+		 */
+		private static int find(int[] keys, int key) {
+			final int mask = keys.length - 1;
+			int slot = hash(key) & mask;
+			while (keys[slot] != 0 && keys[slot] != key)
+				slot = (slot + 1) & mask;
+			return slot;
+		}
+
+		/**
+		 * Spreads consecutive block indexes over the table
+		 * 
+		 * @param key
+		 *            the key
+		 * @return the key hash
+		 */
+		private static int hash(int key) {
+			final int hash = key * 0x9E3779B9;
+			return hash ^ (hash >>> 16);
+		}
+	}
+}
@@ -2,21 +2,54 @@ package com.torrent4j.model;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.torrent4j.model.peer.TorrentPeer;
 
+/**
+ * The list of all peers known for a torrent. Peers are indexed by address and
+ * by peer ID and the peers currently connected are kept in a separate array,
+ * updated as connections are established and closed. All methods are safe to
+ * be called from any thread.
+ * <p>
+ * The connected peers array is replaced, never changed, so that
+ * {@link #broadcast(SwarmBroadcastHandler)} and
+ * {@link #getConnectedPeers()} can iterate it without locking nor copying.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
 public class TorrentSwarm {
 	private final Torrent torrent;
-	private final List<TorrentPeer> peers = new ArrayList<>();
+	/**
+	 * All known peers
+	 */
+	private final Set<TorrentPeer> peers = Collections
+			.newSetFromMap(new ConcurrentHashMap<TorrentPeer, Boolean>());
+	/**
+	 * The known peers, indexed by address
+	 */
+	private final ConcurrentMap<InetSocketAddress, TorrentPeer> peersByAddress = new ConcurrentHashMap<>();
+	/**
+	 * The known peers, indexed by peer ID
+	 */
+	private final ConcurrentMap<String, TorrentPeer> peersByID = new ConcurrentHashMap<>();
+	/**
+	 * The peers currently connected. Replaced on every change, while holding
+	 * the swarm monitor.
+	 */
+	private volatile TorrentPeer[] connectedPeers = new TorrentPeer[0];
 
 	public TorrentSwarm(Torrent torrent) {
 		this.torrent = torrent;
 	}
 
 	public void broadcast(SwarmBroadcastHandler handler) {
-		for (final TorrentPeer peer : getConnectedPeers()) {
+		for (final TorrentPeer peer : connectedPeers) {
 			try {
 				handler.broadcast(peer);
 			} catch (Exception e) {
@@ -32,39 +65,110 @@ public class TorrentSwarm {
 		boolean exception(Exception e);
 	}
 
+	/**
+	 * @return a snapshot of all known peers
+	 */
 	public List<TorrentPeer> getPeers() {
-		return Collections.unmodifiableList(peers);
+		return Collections.unmodifiableList(new ArrayList<>(peers));
 	}
 
+	/**
+	 * @return the peers connected at the moment of the call. The returned
+	 *         list does not change as peers connect or disconnect.
+	 */
 	public List<TorrentPeer> getConnectedPeers() {
-		final List<TorrentPeer> list = new ArrayList<>();
-		for (final TorrentPeer peer : peers) {
-			if (peer.isConnected())
-				list.add(peer);
-		}
-		return Collections.unmodifiableList(list);
+		return Collections.unmodifiableList(Arrays.asList(connectedPeers));
+	}
+
+	/**
+	 * @return the number of peers currently connected
+	 */
+	public int getConnectedPeerCount() {
+		return connectedPeers.length;
 	}
 
 	public void addPeer(TorrentPeer peer) {
-		peers.add(peer);
+		register(peer);
 		torrent.getStrategy().getPeerStrategy().peerDiscovered(torrent, peer);
 	}
 
 	public void removePeer(TorrentPeer peer) {
 		peers.remove(peer);
+		if (peer.getAddress() != null)
+			peersByAddress.remove(peer.getAddress(), peer);
+		if (peer.getPeerID() != null)
+			peersByID.remove(peer.getPeerID().getPeerID(), peer);
+		peerDisconnected(peer);
 		torrent.getStrategy().getPeerStrategy().peerRemoved(torrent, peer);
 	}
 
+	/**
+	 * Registers that a connection to the peer has been established and the
+	 * handshake completed. Peers not yet known, such as the ones connecting
+	 * to us, are added to the swarm.
+	 * 
+	 * @param peer
+	 *            the connected peer
+	 */
+	public void peerConnected(TorrentPeer peer) {
+		register(peer);
+		synchronized (this) {
+			for (final TorrentPeer connected : connectedPeers) {
+				if (connected == peer)
+					return;
+			}
+			final TorrentPeer[] peers = Arrays.copyOf(connectedPeers,
+					connectedPeers.length + 1);
+			peers[peers.length - 1] = peer;
+			connectedPeers = peers;
+		}
+	}
+
+	/**
+	 * Registers that the connection to the peer has been closed
+	 * 
+	 * @param peer
+	 *            the disconnected peer
+	 */
+	public synchronized void peerDisconnected(TorrentPeer peer) {
+		for (int i = 0; i < connectedPeers.length; i++) {
+			if (connectedPeers[i] != peer)
+				continue;
+			final TorrentPeer[] peers = new TorrentPeer[connectedPeers.length - 1];
+			System.arraycopy(connectedPeers, 0, peers, 0, i);
+			System.arraycopy(connectedPeers, i + 1, peers, i, peers.length
+					- i);
+			connectedPeers = peers;
+			return;
+		}
+	}
+
 	public TorrentPeer findPeer(InetSocketAddress address, String peerID) {
-		for (final TorrentPeer peer : peers) {
-			if (peerID != null && peerID.equals(peer.getPeerID()))
-				return peer;
-			if (address != null && address.equals(peer.getAddress()))
+		if (peerID != null) {
+			final TorrentPeer peer = peersByID.get(peerID);
+			if (peer != null)
 				return peer;
 		}
+		if (address != null)
+			return peersByAddress.get(address);
 		return null;
 	}
 
+	/**
+	 * Adds the peer to the swarm and indexes it by its address and peer ID,
+	 * if known
+	 * 
+	 * @param peer
+	 *            the peer
+	 */
+	private void register(TorrentPeer peer) {
+		peers.add(peer);
+		if (peer.getAddress() != null)
+			peersByAddress.put(peer.getAddress(), peer);
+		if (peer.getPeerID() != null)
+			peersByID.put(peer.getPeerID().getPeerID(), peer);
+	}
+
 	public Torrent getTorrent() {
 		return torrent;
 	}
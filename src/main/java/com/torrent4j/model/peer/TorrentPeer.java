@@ -1,5 +1,7 @@
 package com.torrent4j.model.peer;
 
+import io.netty.buffer.ByteBuf;
+
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
@@ -8,6 +10,7 @@ import com.torrent4j.model.Torrent;
 import com.torrent4j.model.TorrentPiece;
 import com.torrent4j.model.TorrentPieceBlock;
 import com.torrent4j.net.TorrentProtocolPeer;
+import com.torrent4j.storage.TorrentStorageRegion;
 
 /**
  * Represents a peer on the BitTorrent network. This object contains information
@@ -182,6 +185,8 @@ public class TorrentPeer {
 	}
 
 	public void resetState() {
+		state.getRequests().clear();
+		state.getUploads().clear();
 		state = new TorrentPeerState(this);
 	}
 
@@ -211,6 +216,8 @@ public class TorrentPeer {
 			return;
 		protocolPeer.choke();
 		state.setLocallyChoked(TorrentPeerChoking.CHOKED);
+		// a choke discards all requests received from the peer
+		state.getUploads().clear();
 	}
 
 	public void unchoke() {
@@ -229,11 +236,14 @@ public class TorrentPeer {
 	}
 
 	public void requestBlock(TorrentPieceBlock block) {
+		if (!state.getRequests().add(block))
+			return;
 		protocolPeer.requestBlock(block.getPiece().getIndex(),
 				block.getOffset(), block.getLength());
 	}
 
 	public void cancelRequestedBlock(TorrentPieceBlock block) {
+		state.getRequests().remove(block);
 		protocolPeer.cancelRequestedBlock(block.getPiece().getIndex(),
 				block.getOffset(), block.getLength());
 	}
@@ -243,6 +253,16 @@ public class TorrentPeer {
 				data);
 	}
 
+	public void sendBlock(TorrentPieceBlock block, ByteBuf data) {
+		protocolPeer.sendBlock(block.getPiece().getIndex(), block.getOffset(),
+				data);
+	}
+
+	public void sendBlock(TorrentPieceBlock block, TorrentStorageRegion region) {
+		protocolPeer.sendBlock(block.getPiece().getIndex(), block.getOffset(),
+				region);
+	}
+
 	public void sendPort(int port) {
 		protocolPeer.port(port);
 	}
@@ -251,6 +271,10 @@ public class TorrentPeer {
 		protocolPeer.keepAlive();
 	}
 
+	public void flush() {
+		protocolPeer.flush();
+	}
+
 	public Torrent getTorrent() {
 		return torrent;
 	}
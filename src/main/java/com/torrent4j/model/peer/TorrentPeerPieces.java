@@ -3,6 +3,8 @@ package com.torrent4j.model.peer;
 import java.util.BitSet;
 
 import com.torrent4j.model.AbstractTorrentPiecesContainer;
+import com.torrent4j.model.TorrentPiece;
+import com.torrent4j.model.TorrentPieceAvailability;
 import com.torrent4j.net.peerwire.messages.BitFieldMessage;
 import com.torrent4j.net.peerwire.messages.HaveMessage;
 
@@ -11,6 +13,8 @@ import com.torrent4j.net.peerwire.messages.HaveMessage;
  * Please note that some peers make use of a delayed bitfield, which sets random
  * pieces of the bitfield set on {@link BitFieldMessage} and the rest is
  * received with {@link HaveMessage}s. This is called "lazy bitfield".
+ * <p>
+ * All changes are reflected on the torrent {@link TorrentPieceAvailability}.
  * 
  * @author <a href="http://www.rogiel.com">Rogiel</a>
  */
@@ -24,9 +28,12 @@ public class TorrentPeerPieces extends AbstractTorrentPiecesContainer {
 	 *            the bitset
 	 */
 	public void load(BitSet bitSet) {
-		this.bitSet.set(0, this.bitSet.size(), false);
+		clear();
+		final TorrentPieceAvailability availability = torrent
+				.getAvailability();
 		for (int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1)) {
 			this.bitSet.set(i, true);
+			availability.increment(i);
 		}
 	}
 
@@ -35,6 +42,32 @@ public class TorrentPeerPieces extends AbstractTorrentPiecesContainer {
 		this.peer = peer;
 	}
 
+	@Override
+	public void addPiece(TorrentPiece piece) {
+		if (hasPiece(piece))
+			return;
+		super.addPiece(piece);
+		torrent.getAvailability().increment(piece.getIndex());
+	}
+
+	@Override
+	public void removePiece(TorrentPiece piece) {
+		if (!hasPiece(piece))
+			return;
+		super.removePiece(piece);
+		torrent.getAvailability().decrement(piece.getIndex());
+	}
+
+	@Override
+	public void clear() {
+		final TorrentPieceAvailability availability = torrent
+				.getAvailability();
+		for (int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1)) {
+			availability.decrement(i);
+		}
+		super.clear();
+	}
+
 	public TorrentPeer getPeer() {
 		return peer;
 	}
@@ -0,0 +1,290 @@
+package com.torrent4j.model.peer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.torrent4j.TorrentControllerConfiguration;
+import com.torrent4j.model.TorrentPieceBlock;
+
+/**
+ * Tracks the blocks requested from a peer which have not been received yet.
+ * Several requests are kept outstanding so that the peer always has data
+ * queued to send, instead of waiting an entire round trip for each block.
+ * <p>
+ * The queue depth adapts to the peer: it is sized from the measured transfer
+ * rate multiplied by the request latency (the amount of data "in flight"),
+ * plus the configured minimum depth, which lets the queue grow while the
+ * connection is not yet saturated. The depth is always kept within
+ * {@link TorrentControllerConfiguration#getMinimumRequestQueueDepth()} and
+ * {@link TorrentControllerConfiguration#getMaximumRequestQueueDepth()}.
+ * <p>
+ * Latency is only sampled for the request at the head of the queue, from the
+ * time it was made or the previous block arrived, whichever is later. Time
+ * spent queued behind our own outstanding requests is not latency, and
+ * counting it would make the depth grow with itself up to the maximum.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class TorrentPeerRequestQueue {
+	/**
+	 * The weight of new samples on the latency average (1/8, as used by TCP)
+	 */
+	private static final int LATENCY_SMOOTHING = 8;
+	/**
+	 * The weight of new samples on the rate average
+	 */
+	private static final int RATE_SMOOTHING = 4;
+	/**
+	 * The minimum interval, in milliseconds, in which the rate is sampled
+	 */
+	private static final long RATE_SAMPLE_INTERVAL = 1000;
+
+	/**
+	 * The peer to which the requests were sent
+	 */
+	private final TorrentPeer peer;
+	/**
+	 * The outstanding requests and the time they were made, in request order
+	 */
+	private final Map<TorrentPieceBlock, Long> requests = new LinkedHashMap<>();
+	/**
+	 * The last requested block
+	 */
+	private TorrentPieceBlock lastRequested;
+
+	/**
+	 * The smoothed request latency in milliseconds, <code>-1</code> if unknown
+	 */
+	private long latency = -1;
+	/**
+	 * The time the last block was received, <code>0</code> if none
+	 */
+	private long lastReceived = 0;
+	/**
+	 * The smoothed transfer rate in bytes per second
+	 */
+	private long rate = 0;
+	/**
+	 * The time the current rate sample started
+	 */
+	private long sampleStart;
+	/**
+	 * The amount of bytes received in the current rate sample
+	 */
+	private long sampleBytes;
+
+	/**
+	 * Creates a new instance
+	 * 
+	 * @param peer
+	 *            the peer to which the requests are sent
+	 */
+	public TorrentPeerRequestQueue(TorrentPeer peer) {
+		this.peer = peer;
+	}
+
+	/**
+	 * Registers a request for the given block
+	 * 
+	 * @param block
+	 *            the requested block
+	 * @return <code>true</code> if the block was not already requested
+	 */
+	public synchronized boolean add(TorrentPieceBlock block) {
+		if (requests.containsKey(block))
+			return false;
+		final long now = System.currentTimeMillis();
+		if (requests.isEmpty()) {
+			// the peer was idle, do not account that time on the rate
+			sampleStart = now;
+			sampleBytes = 0;
+		}
+		requests.put(block, now);
+		block.addRequest();
+		lastRequested = block;
+		return true;
+	}
+
+	/**
+	 * Removes the request for the given block, if any
+	 * 
+	 * @param block
+	 *            the block
+	 * @return <code>true</code> if the block was requested
+	 */
+	public synchronized boolean remove(TorrentPieceBlock block) {
+		if (requests.remove(block) == null)
+			return false;
+		block.removeRequest();
+		return true;
+	}
+
+	/**
+	 * Removes the request for a received block, updating the latency and rate
+	 * estimations
+	 * 
+	 * @param block
+	 *            the received block
+	 * @return <code>true</code> if the block was requested
+	 */
+	public synchronized boolean received(TorrentPieceBlock block) {
+		if (!requests.containsKey(block))
+			return false;
+		final boolean head = requests.keySet().iterator().next()
+				.equals(block);
+		final long requested = requests.remove(block);
+		block.removeRequest();
+
+		final long now = System.currentTimeMillis();
+		if (head) {
+			final long sample = now - Math.max(requested, lastReceived);
+			if (latency < 0)
+				latency = sample;
+			else
+				latency += (sample - latency) / LATENCY_SMOOTHING;
+		}
+		lastReceived = now;
+
+		sampleBytes += block.getLength();
+		final long elapsed = now - sampleStart;
+		if (elapsed >= RATE_SAMPLE_INTERVAL) {
+			final long sampleRate = sampleBytes * 1000 / elapsed;
+			if (rate == 0)
+				rate = sampleRate;
+			else
+				rate += (sampleRate - rate) / RATE_SMOOTHING;
+			sampleStart = now;
+			sampleBytes = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes all requests made more than <code>timeout</code> milliseconds
+	 * ago. Since the peer is not keeping up, the rate estimation is reset and
+	 * the queue depth returns to its minimum.
+	 * 
+	 * @param timeout
+	 *            the request timeout in milliseconds
+	 * @return the blocks whose requests have timed out
+	 */
+	public synchronized List<TorrentPieceBlock> expire(long timeout) {
+		final long limit = System.currentTimeMillis() - timeout;
+		final List<TorrentPieceBlock> expired = new ArrayList<>();
+		final Iterator<Entry<TorrentPieceBlock, Long>> iterator = requests
+				.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final Entry<TorrentPieceBlock, Long> entry = iterator.next();
+			// requests are ordered by time
+			if (entry.getValue() > limit)
+				break;
+			iterator.remove();
+			entry.getKey().removeRequest();
+			expired.add(entry.getKey());
+		}
+		if (!expired.isEmpty())
+			rate = 0;
+		return expired;
+	}
+
+	/**
+	 * Removes all requests, for instance, once the peer chokes or disconnects
+	 * 
+	 * @return the blocks that were requested
+	 */
+	public synchronized List<TorrentPieceBlock> clear() {
+		final List<TorrentPieceBlock> blocks = new ArrayList<>(
+				requests.keySet());
+		for (final TorrentPieceBlock block : blocks) {
+			block.removeRequest();
+		}
+		requests.clear();
+		return blocks;
+	}
+
+	/**
+	 * @param block
+	 *            the block
+	 * @return <code>true</code> if the block has been requested from the peer
+	 */
+	public synchronized boolean contains(TorrentPieceBlock block) {
+		return requests.containsKey(block);
+	}
+
+	/**
+	 * @return the requested blocks, in request order
+	 */
+	public synchronized List<TorrentPieceBlock> getBlocks() {
+		return new ArrayList<>(requests.keySet());
+	}
+
+	/**
+	 * @return the last requested block, if any
+	 */
+	public synchronized TorrentPieceBlock getLastRequested() {
+		return lastRequested;
+	}
+
+	/**
+	 * @return the number of outstanding requests
+	 */
+	public synchronized int size() {
+		return requests.size();
+	}
+
+	/**
+	 * @return <code>true</code> if there are no outstanding requests
+	 */
+	public synchronized boolean isEmpty() {
+		return requests.isEmpty();
+	}
+
+	/**
+	 * @return <code>true</code> if no more requests should be made
+	 */
+	public synchronized boolean isFull() {
+		return requests.size() >= getDepth();
+	}
+
+	/**
+	 * @return the amount of requests that should be kept outstanding
+	 */
+	public synchronized int getDepth() {
+		final TorrentControllerConfiguration config = peer.getTorrent()
+				.getController().getConfig();
+		final int minimum = config.getMinimumRequestQueueDepth();
+		final int maximum = config.getMaximumRequestQueueDepth();
+		if (latency < 0 || rate == 0)
+			return minimum;
+		final long inFlight = rate * latency / 1000;
+		final long depth = (inFlight + TorrentPieceBlock.BLOCK_LENGTH - 1)
+				/ TorrentPieceBlock.BLOCK_LENGTH + minimum;
+		return (int) Math.max(minimum, Math.min(maximum, depth));
+	}
+
+	/**
+	 * @return the smoothed request latency in milliseconds or <code>-1</code>
+	 *         if no block has been received yet
+	 */
+	public synchronized long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @return the smoothed transfer rate in bytes per second
+	 */
+	public synchronized long getRate() {
+		return rate;
+	}
+
+	/**
+	 * @return the peer to which the requests were sent
+	 */
+	public TorrentPeer getPeer() {
+		return peer;
+	}
+}
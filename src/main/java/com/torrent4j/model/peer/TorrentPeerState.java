@@ -14,18 +14,18 @@ public class TorrentPeerState {
 	private TorrentPeerChoking remoteChoked = TorrentPeerChoking.CHOKED;
 	private TorrentPeerChoking locallyChoked = TorrentPeerChoking.CHOKED;
 
-	private TorrentPieceBlock downloadRequestedBlock;
-	private Date downloadRequestedDate;
+	private final TorrentPeerRequestQueue requests;
 	private TorrentPieceBlock lastDownloadedBlock;
 	private Date lastDownloadedBlockDate;
 
-	private TorrentPieceBlock uploadRequestedBlock;
-	private Date uploadRequestedDate;
+	private final TorrentPeerUploadQueue uploads;
 	private TorrentPieceBlock lastUploadedBlock;
 	private Date lastUploadedBlockDate;
 
 	public TorrentPeerState(TorrentPeer peer) {
 		this.peer = peer;
+		this.requests = new TorrentPeerRequestQueue(peer);
+		this.uploads = new TorrentPeerUploadQueue(peer);
 	}
 
 	/**
@@ -117,41 +117,17 @@ public class TorrentPeerState {
 	}
 
 	/**
-	 * @return the downloadRequestedBlock
+	 * @return the blocks requested from the peer
 	 */
-	public TorrentPieceBlock getDownloadRequestedBlock() {
-		return downloadRequestedBlock;
-	}
-	
-	/**
-	 * @return the downloadRequestedBlock
-	 */
-	public boolean hasDownloadRequestedBlock() {
-		return downloadRequestedBlock != null;
-	}
-
-	/**
-	 * @param downloadRequestedBlock
-	 *            the downloadRequestedBlock to set
-	 */
-	public void setDownloadRequestedBlock(
-			TorrentPieceBlock downloadRequestedBlock) {
-		this.downloadRequestedBlock = downloadRequestedBlock;
-	}
-
-	/**
-	 * @return the downloadRequestedDate
-	 */
-	public Date getDownloadRequestedDate() {
-		return downloadRequestedDate;
+	public TorrentPeerRequestQueue getRequests() {
+		return requests;
 	}
 
 	/**
-	 * @param downloadRequestedDate
-	 *            the downloadRequestedDate to set
+	 * @return <code>true</code> if any block has been requested from the peer
 	 */
-	public void setDownloadRequestedDate(Date downloadRequestedDate) {
-		this.downloadRequestedDate = downloadRequestedDate;
+	public boolean hasDownloadRequestedBlocks() {
+		return !requests.isEmpty();
 	}
 
 	/**
@@ -185,40 +161,18 @@ public class TorrentPeerState {
 	}
 
 	/**
-	 * @return the uploadRequestedBlock
-	 */
-	public TorrentPieceBlock getUploadRequestedBlock() {
-		return uploadRequestedBlock;
-	}
-	
-	/**
-	 * @return the uploadRequestedBlock
-	 */
-	public boolean hasUploadRequestedBlock() {
-		return uploadRequestedBlock != null;
-	}
-
-	/**
-	 * @param uploadRequestedBlock
-	 *            the uploadRequestedBlock to set
-	 */
-	public void setUploadRequestedBlock(TorrentPieceBlock uploadRequestedBlock) {
-		this.uploadRequestedBlock = uploadRequestedBlock;
-	}
-
-	/**
-	 * @return the uploadRequestedDate
+	 * @return the blocks requested by the peer
 	 */
-	public Date getUploadRequestedDate() {
-		return uploadRequestedDate;
+	public TorrentPeerUploadQueue getUploads() {
+		return uploads;
 	}
 
 	/**
-	 * @param uploadRequestedDate
-	 *            the uploadRequestedDate to set
+	 * @return <code>true</code> if the peer has requested any block not sent
+	 *         yet
 	 */
-	public void setUploadRequestedDate(Date uploadRequestedDate) {
-		this.uploadRequestedDate = uploadRequestedDate;
+	public boolean hasUploadRequestedBlocks() {
+		return !uploads.isEmpty();
 	}
 
 	/**
@@ -0,0 +1,192 @@
+package com.torrent4j.model.peer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.torrent4j.TorrentControllerConfiguration;
+import com.torrent4j.model.TorrentPieceBlock;
+
+/**
+ * Tracks the blocks a peer requested from us which have not been sent yet.
+ * Peers pipeline their requests, so up to
+ * {@link TorrentControllerConfiguration#getMaximumUploadQueueDepth()} blocks
+ * are queued and served in request order.
+ * <p>
+ * Blocks taken from the queue with {@link #next(int)} are being read from
+ * the storage or written to the network and can no longer be cancelled. They
+ * are accounted as in flight until {@link #sent()} is called, which bounds
+ * how far the storage reads run ahead of the network. Only one reader serves
+ * the queue at a time, see {@link #startServing(int)}.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class TorrentPeerUploadQueue {
+	/**
+	 * The peer which requested the blocks
+	 */
+	private final TorrentPeer peer;
+	/**
+	 * The queued blocks, in request order
+	 */
+	private final Set<TorrentPieceBlock> queued = new LinkedHashSet<>();
+	/**
+	 * The number of blocks taken from the queue and not yet sent
+	 */
+	private int inFlight = 0;
+	/**
+	 * Whether a reader is serving the queue
+	 */
+	private boolean serving = false;
+
+	/**
+	 * Creates a new instance
+	 * 
+	 * @param peer
+	 *            the peer which requests the blocks
+	 */
+	public TorrentPeerUploadQueue(TorrentPeer peer) {
+		this.peer = peer;
+	}
+
+	/**
+	 * Queues a block requested by the peer. Requests for blocks already
+	 * queued are ignored.
+	 * 
+	 * @param block
+	 *            the requested block
+	 * @return <code>false</code> if the queue is full and the block was not
+	 *         queued
+	 */
+	public synchronized boolean add(TorrentPieceBlock block) {
+		if (queued.contains(block))
+			return true;
+		if (queued.size() + inFlight >= getMaximumDepth())
+			return false;
+		queued.add(block);
+		return true;
+	}
+
+	/**
+	 * Removes a block from the queue, once the peer cancels its request
+	 * 
+	 * @param block
+	 *            the block
+	 * @return <code>true</code> if the block was queued, <code>false</code> if
+	 *         it was not requested or is already being sent
+	 */
+	public synchronized boolean remove(TorrentPieceBlock block) {
+		return queued.remove(block);
+	}
+
+	/**
+	 * Marks the queue as being served, unless it is already being served or
+	 * there is nothing to be served
+	 * 
+	 * @param readAhead
+	 *            the maximum number of blocks in flight
+	 * @return <code>true</code> if the caller must serve the queue, calling
+	 *         {@link #next(int)} until it returns <code>null</code>
+	 */
+	public synchronized boolean startServing(int readAhead) {
+		if (serving || queued.isEmpty() || inFlight >= readAhead)
+			return false;
+		serving = true;
+		return true;
+	}
+
+	/**
+	 * Stops serving the queue without taking any block, for when the caller
+	 * could not start serving it after all
+	 */
+	public synchronized void stopServing() {
+		serving = false;
+	}
+
+	/**
+	 * Takes the next block to be sent from the queue. If there is none, or
+	 * too many blocks are already in flight, the queue stops being served.
+	 * 
+	 * @param readAhead
+	 *            the maximum number of blocks in flight
+	 * @return the next block or <code>null</code> if the caller must stop
+	 *         serving the queue
+	 */
+	public synchronized TorrentPieceBlock next(int readAhead) {
+		if (queued.isEmpty() || inFlight >= readAhead) {
+			serving = false;
+			return null;
+		}
+		final TorrentPieceBlock block = queued.iterator().next();
+		queued.remove(block);
+		inFlight++;
+		return block;
+	}
+
+	/**
+	 * Registers that a block taken from the queue has been sent, or could not
+	 * be sent
+	 */
+	public synchronized void sent() {
+		if (inFlight > 0)
+			inFlight--;
+	}
+
+	/**
+	 * Removes all queued blocks, for instance, once the peer is choked or
+	 * disconnects
+	 * 
+	 * @return the blocks that were queued
+	 */
+	public synchronized List<TorrentPieceBlock> clear() {
+		final List<TorrentPieceBlock> blocks = new ArrayList<>(queued);
+		queued.clear();
+		return blocks;
+	}
+
+	/**
+	 * @param block
+	 *            the block
+	 * @return <code>true</code> if the block is queued
+	 */
+	public synchronized boolean contains(TorrentPieceBlock block) {
+		return queued.contains(block);
+	}
+
+	/**
+	 * @return the number of queued blocks
+	 */
+	public synchronized int size() {
+		return queued.size();
+	}
+
+	/**
+	 * @return <code>true</code> if there are no queued blocks
+	 */
+	public synchronized boolean isEmpty() {
+		return queued.isEmpty();
+	}
+
+	/**
+	 * @return the number of blocks taken from the queue and not yet sent
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return the maximum number of requests the peer may have outstanding
+	 */
+	public int getMaximumDepth() {
+		return peer.getTorrent().getController().getConfig()
+				.getMaximumUploadQueueDepth();
+	}
+
+	/**
+	 * @return the peer which requested the blocks
+	 */
+	public TorrentPeer getPeer() {
+		return peer;
+	}
+}
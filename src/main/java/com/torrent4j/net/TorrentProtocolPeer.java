@@ -1,10 +1,13 @@
 package com.torrent4j.net;
 
+import io.netty.buffer.ByteBuf;
+
 import java.nio.ByteBuffer;
 import java.util.BitSet;
 
 import com.torrent4j.model.Torrent;
 import com.torrent4j.model.peer.TorrentPeer;
+import com.torrent4j.storage.TorrentStorageRegion;
 
 public interface TorrentProtocolPeer {
 	public TorrentPeer getTorrentPeer();
@@ -25,6 +28,21 @@ public interface TorrentProtocolPeer {
 
 	void sendBlock(int pieceIndex, int start, ByteBuffer data);
 
+	void sendBlock(int pieceIndex, int start, TorrentStorageRegion region);
+
+	/**
+	 * Sends the block data held by a Netty buffer. The buffer is released
+	 * once sent.
+	 * 
+	 * @param pieceIndex
+	 *            the piece index
+	 * @param start
+	 *            the block offset inside the piece
+	 * @param data
+	 *            the block data
+	 */
+	void sendBlock(int pieceIndex, int start, ByteBuf data);
+
 	void bitField(BitSet bitSet);
 
 	void have(int pieceIndex);
@@ -40,4 +58,9 @@ public interface TorrentProtocolPeer {
 	void port(int dhtPort);
 
 	void keepAlive();
+
+	/**
+	 * Sends all messages written so far to the peer
+	 */
+	void flush();
 }
@@ -9,7 +9,7 @@ import io.netty.handler.logging.LoggingHandler;
 import java.util.concurrent.ScheduledExecutorService;
 
 import com.torrent4j.TorrentController;
-import com.torrent4j.net.peerwire.codec.PeerWireFrameDecoder;
+import com.torrent4j.net.peerwire.codec.PeerWireFileRegionEncoder;
 import com.torrent4j.net.peerwire.codec.PeerWireFrameEncoder;
 import com.torrent4j.net.peerwire.codec.PeerWireMessageDecoder;
 import com.torrent4j.net.peerwire.codec.PeerWireMessageEncoder;
@@ -33,7 +33,8 @@ public class PeerWireChannelInitializer extends ChannelInitializer<Channel> {
 		p.addLast("torrent-shaper", new TorrentTrafficShapingHandler(executor));
 		p.addLast("traffic-shaper", new PeerTrafficShapingHandler());
 
-		p.addLast("frame-decoder", new PeerWireFrameDecoder());
+		p.addLast("region-encoder", new PeerWireFileRegionEncoder());
+
 		p.addLast("frame-encoder", new PeerWireFrameEncoder());
 
 		p.addLast("message-decoder", new PeerWireMessageDecoder());
@@ -1,20 +1,29 @@
 package com.torrent4j.net.peerwire;
 
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import com.torrent4j.TorrentController;
+import com.torrent4j.TorrentControllerConfiguration;
 import com.torrent4j.model.Torrent;
 import com.torrent4j.model.TorrentPiece;
 import com.torrent4j.model.TorrentPieceBlock;
+import com.torrent4j.model.TorrentPieceHasher;
 import com.torrent4j.model.peer.TorrentPeer;
 import com.torrent4j.model.peer.TorrentPeerChoking;
 import com.torrent4j.model.peer.TorrentPeerInterest;
-import com.torrent4j.net.peerwire.codec.PeerWireFrameDecoder;
-import com.torrent4j.net.peerwire.codec.PeerWireMessageDecoder;
 import com.torrent4j.net.peerwire.messages.BitFieldMessage;
 import com.torrent4j.net.peerwire.messages.BlockMessage;
 import com.torrent4j.net.peerwire.messages.CancelMessage;
@@ -28,11 +37,25 @@ import com.torrent4j.net.peerwire.messages.UnchokeMessage;
 import com.torrent4j.net.peerwire.traffic.PeerTrafficShapingHandler;
 import com.torrent4j.net.peerwire.traffic.TorrentTrafficShapingHandler;
 import com.torrent4j.util.Hash;
-import com.torrent4j.util.HashType;
 
 public class PeerWireInboundHandler extends ChannelInboundHandlerAdapter {
 	private final TorrentController controller;
 	private PeerWireProtocolPeer peer;
+	/**
+	 * The number of blocks received from this channel still waiting to be
+	 * written to the storage. Only accessed from the channel event loop.
+	 */
+	private int pendingWrites = 0;
+	/**
+	 * Writes rejected by the saturated disk executor, in the order they were
+	 * received. Reading from the channel is suspended until all of them have
+	 * been resubmitted. Only accessed from the channel event loop.
+	 */
+	private final Queue<DeferredWrite> deferredWrites = new ArrayDeque<>();
+	/**
+	 * The task that periodically expires requests the peer did not fulfill
+	 */
+	private ScheduledFuture<?> requestTimeoutTask;
 
 	public PeerWireInboundHandler(TorrentController controller) {
 		this.controller = controller;
@@ -44,16 +67,13 @@ public class PeerWireInboundHandler extends ChannelInboundHandlerAdapter {
 		try {
 			if (!(msg instanceof PeerWireMessage))
 				return;
+			if (peer != null)
+				peer.beginReadCycle();
 			if (msg instanceof HandshakeMessage) {
 				final HandshakeMessage message = (HandshakeMessage) msg;
 
-				((PeerWireFrameDecoder) ctx.channel().pipeline()
-						.get("frame-decoder")).setHandshaked(true);
-				((PeerWireMessageDecoder) ctx.channel().pipeline()
-						.get("message-decoder")).setHandshaked(true);
-
-				final Hash hash = new Hash(HashType.SHA1, message.torrentHash);
-				final Torrent torrent = controller.findTorrent(hash);
+				final Torrent torrent = controller
+						.findTorrent(message.torrentHash);
 
 				if (torrent == null) {
 					ctx.channel().disconnect();
@@ -68,9 +88,25 @@ public class PeerWireInboundHandler extends ChannelInboundHandlerAdapter {
 					peer.setAddress((InetSocketAddress) ctx.channel()
 							.remoteAddress());
 				}
+				// accepted channels have no protocol peer yet
+				final boolean inbound = ctx.channel().parent() != null;
+				if (inbound) {
+					if (peer.getProtocolPeer() != null
+							&& peer.getProtocolPeer().isConnected()) {
+						// already connected to this peer
+						ctx.channel().disconnect();
+						return;
+					}
+					final PeerWireProtocolPeer protocolPeer = new PeerWireProtocolPeer(
+							ctx.channel());
+					protocolPeer.setTorrentPeer(peer);
+					peer.setProtocolPeer(protocolPeer);
+				}
 				peer.setPeerID(message.peerID);
-				
+
 				this.peer = (PeerWireProtocolPeer) peer.getProtocolPeer();
+				ctx.channel().pipeline().get(PeerWireOutboundHandler.class)
+						.setPeer(this.peer);
 
 				ctx.channel().pipeline()
 						.get(PeerTrafficShapingHandler.class).setPeer(peer);
@@ -79,8 +115,31 @@ public class PeerWireInboundHandler extends ChannelInboundHandlerAdapter {
 						.setTorrent(torrent);
 
 				peer.resetState();
-				this.peer.getStrategy().getPeerStrategy()
-						.peerConnected(torrent, peer);
+				requestTimeoutTask = ctx.executor().scheduleAtFixedRate(
+						new Runnable() {
+							@Override
+							public void run() {
+								expireRequests();
+							}
+						}, 1, 1, TimeUnit.SECONDS);
+				if (inbound) {
+					// answer the handshake, messages can only be sent and the
+					// peer registered once it has been written
+					final TorrentPeer connected = peer;
+					this.peer.write(
+							new HandshakeMessage(torrent.getHash().getHash(),
+									controller.getConfig().getPeerID()))
+							.addListener(new ChannelFutureListener() {
+								@Override
+								public void operationComplete(
+										ChannelFuture future) {
+									if (future.isSuccess())
+										peerConnected(torrent, connected);
+								}
+							});
+				} else {
+					peerConnected(torrent, peer);
+				}
 			} else if (msg instanceof HaveMessage) {
 				peer.getTorrentPeer()
 						.getPieces()
@@ -102,6 +161,8 @@ public class PeerWireInboundHandler extends ChannelInboundHandlerAdapter {
 			} else if (msg instanceof ChokeMessage) {
 				peer.getTorrentPeer().getState()
 						.setRemoteChoked(TorrentPeerChoking.CHOKED);
+				// a choke discards all pending requests
+				peer.getTorrentPeer().getState().getRequests().clear();
 				peer.getStrategy().getPeerStrategy()
 						.choked(peer.getTorrent(), peer.getTorrentPeer());
 			} else if (msg instanceof InterestedMessage) {
@@ -125,18 +186,20 @@ public class PeerWireInboundHandler extends ChannelInboundHandlerAdapter {
 
 				final TorrentPiece piece = peer.getTorrent().getPiece(
 						message.pieceIndex);
-				final TorrentPieceBlock block = piece.getBlock(message.begin,
-						message.length);
-				
-				if(peer.getTorrentPeer().getState().hasUploadRequestedBlock()) {
+				final TorrentPieceBlock block = piece == null ? null : piece
+						.getBlock(message.begin, message.length);
+				// requests made while choked are discarded by the choke
+				if (block == null
+						|| peer.getTorrentPeer().getState().isLocallyChoked())
+					return;
+
+				// peers pipeline their requests, only disconnect the ones
+				// exceeding the queue limit
+				if (!peer.getTorrentPeer().getState().getUploads().add(block)) {
 					peer.disconnect();
 					return;
 				}
 
-				peer.getTorrentPeer().getState().setUploadRequestedBlock(block);
-				peer.getTorrentPeer().getState()
-						.setUploadRequestedDate(new Date());
-
 				peer.getStrategy()
 						.getUploadStrategy()
 						.blockRequested(peer.getTorrent(), block,
@@ -146,11 +209,13 @@ public class PeerWireInboundHandler extends ChannelInboundHandlerAdapter {
 
 				final TorrentPiece piece = peer.getTorrent().getPiece(
 						message.pieceIndex);
-				final TorrentPieceBlock block = piece.getBlock(message.begin,
-						message.length);
-
-				peer.getTorrentPeer().getState().setUploadRequestedBlock(null);
-				peer.getTorrentPeer().getState().setUploadRequestedDate(null);
+				final TorrentPieceBlock block = piece == null ? null : piece
+						.getBlock(message.begin, message.length);
+				// blocks already being sent can no longer be cancelled
+				if (block == null
+						|| !peer.getTorrentPeer().getState().getUploads()
+								.remove(block))
+					return;
 
 				peer.getStrategy()
 						.getUploadStrategy()
@@ -161,44 +226,20 @@ public class PeerWireInboundHandler extends ChannelInboundHandlerAdapter {
 
 				final TorrentPiece piece = peer.getTorrent().getPiece(
 						message.pieceIndex);
-				final TorrentPieceBlock block = piece.getBlock(message.begin,
-						message.data.remaining());
+				final TorrentPieceBlock block = piece == null ? null : piece
+						.getBlock(message.begin, message.data.remaining());
+				if (block == null) {
+					message.release();
+					return;
+				}
 
 				peer.getTorrentPeer().getState().setLastDownloadedBlock(block);
 				peer.getTorrentPeer().getState()
 						.setLastDownloadedBlockDate(new Date());
 
-				peer.getTorrentPeer().getState()
-						.setDownloadRequestedBlock(null);
-				peer.getTorrentPeer().getState().setDownloadRequestedDate(null);
-
-				controller.getStorage().write(piece.getTorrent(),
-						block.getTorrentRange(), message.data);
-				block.setDownloaded(true);
-				if (piece.isDownloaded()) {
-					final Hash pieceHash = controller.getStorage().checksum(
-							piece);
-					if (!piece.getHash().equals(pieceHash)) {
-						piece.getTorrent()
-								.getStrategy()
-								.getDownloadStrategy()
-								.pieceChecksumFailed(piece.getTorrent(), piece,
-										peer.getTorrentPeer());
-					} else {
-						piece.getTorrent().getCompletedPieces().addPiece(piece);
-						piece.getTorrent()
-								.getStrategy()
-								.getDownloadStrategy()
-								.pieceComplete(piece.getTorrent(), piece,
-										peer.getTorrentPeer());
-					}
-				} else {
-					piece.getTorrent()
-							.getStrategy()
-							.getDownloadStrategy()
-							.blockReceived(block.getTorrent(), block,
-									peer.getTorrentPeer());
-				}
+				peer.getTorrentPeer().getState().getRequests().received(block);
+
+				writeBlock(ctx, block, message);
 			} else {
 				System.out.println(msg);
 			}
@@ -206,4 +247,250 @@ public class PeerWireInboundHandler extends ChannelInboundHandlerAdapter {
 			super.channelRead(ctx, msg);
 		}
 	}
+
+	@Override
+	public void channelReadComplete(ChannelHandlerContext ctx)
+			throws Exception {
+		// messages written while handling the read are sent together
+		if (peer != null)
+			peer.endReadCycle();
+		super.channelReadComplete(ctx);
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		if (requestTimeoutTask != null)
+			requestTimeoutTask.cancel(false);
+		if (peer != null) {
+			peer.getTorrent().getSwarm().peerDisconnected(peer.getTorrentPeer());
+			// let other peers request the blocks requested from this one
+			peer.getTorrentPeer().getState().getRequests().clear();
+			peer.getTorrentPeer().getState().getUploads().clear();
+			// the peer pieces no longer count on the torrent availability
+			peer.getTorrentPeer().getPieces().clear();
+		}
+		super.channelInactive(ctx);
+	}
+
+	/**
+	 * Registers the peer as connected once the handshake has been exchanged
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param peer
+	 *            the connected peer
+	 */
+	private void peerConnected(Torrent torrent, TorrentPeer peer) {
+		torrent.getSwarm().peerConnected(peer);
+		torrent.getStrategy().getPeerStrategy().peerConnected(torrent, peer);
+	}
+
+	/**
+	 * Removes requests that were not fulfilled within the configured timeout,
+	 * notifying the download strategy for each of them
+	 */
+	private void expireRequests() {
+		final TorrentPeer torrentPeer = peer.getTorrentPeer();
+		final long timeout = TimeUnit.SECONDS.toMillis(controller.getConfig()
+				.getRequestTimeout());
+		for (final TorrentPieceBlock block : torrentPeer.getState()
+				.getRequests().expire(timeout)) {
+			peer.getStrategy().getDownloadStrategy()
+					.blockRequestTimedOut(peer.getTorrent(), block, torrentPeer);
+		}
+	}
+
+	/**
+	 * Writes the block into the storage and, if it completes its piece,
+	 * verifies the piece checksum. Both happen on the controller disk
+	 * executor, so that the event loop is never blocked by the disk. The
+	 * outcome is notified to the download strategy back on the event loop.
+	 * <p>
+	 * If too many blocks from this channel are waiting for the disk, or the
+	 * disk executor rejects the write because its queue is full, reading from
+	 * the channel is suspended until the disk catches up.
+	 * 
+	 * @param ctx
+	 *            the channel handler context
+	 * @param block
+	 *            the received block
+	 * @param message
+	 *            the block message, released once stored
+	 */
+	private void writeBlock(final ChannelHandlerContext ctx,
+			final TorrentPieceBlock block, final BlockMessage message) {
+		final TorrentPeer torrentPeer = peer.getTorrentPeer();
+		final TorrentPiece piece = block.getPiece();
+		final Torrent torrent = piece.getTorrent();
+		final TorrentControllerConfiguration config = controller.getConfig();
+
+		if (++pendingWrites >= config.getMaximumPendingWrites())
+			ctx.channel().config().setAutoRead(false);
+
+		submitWrite(ctx, new DeferredWrite(message, new Runnable() {
+			@Override
+			public void run() {
+				Hash pieceHash = null;
+				boolean verified = false;
+				Exception error = null;
+				try {
+					// null once the block has been downloaded
+					final TorrentPieceHasher blockHasher = piece
+							.getHasher(block);
+					if (blockHasher != null) {
+						final ByteBuffer hashData = message.data.duplicate();
+						// the inbound buffer is written as is, from pooled
+						// memory, when the block did not have to be merged
+						if (message.buffer != null)
+							controller.getStorage().write(torrent,
+									block.getTorrentRange(), message.buffer);
+						else
+							controller.getStorage().write(torrent,
+									block.getTorrentRange(), message.data);
+						blockHasher.update(block.getOffset(), hashData);
+
+						// only one thread gets to verify the piece
+						final TorrentPieceHasher hasher = piece
+								.completeBlock(block);
+						if (hasher != null) {
+							pieceHash = hasher.digest();
+							if (pieceHash == null)
+								pieceHash = controller.getStorage().checksum(
+										piece);
+							verified = true;
+						}
+					}
+				} catch (Exception e) {
+					error = e;
+				} finally {
+					// the data is no longer needed, the piece has been hashed
+					message.release();
+				}
+
+				final boolean complete = verified;
+				final boolean valid = piece.getHash().equals(pieceHash);
+				final Exception cause = error;
+				ctx.executor().execute(new Runnable() {
+					@Override
+					public void run() {
+						pendingWrites--;
+						if (pendingWrites <= config.getMaximumPendingWrites() / 2
+								&& deferredWrites.isEmpty())
+							ctx.channel().config().setAutoRead(true);
+						if (cause != null) {
+							ctx.fireExceptionCaught(cause);
+						} else if (!complete) {
+							torrent.getStrategy()
+									.getDownloadStrategy()
+									.blockReceived(torrent, block, torrentPeer);
+						} else if (!valid) {
+							torrent.getStrategy()
+									.getDownloadStrategy()
+									.pieceChecksumFailed(torrent, piece,
+											torrentPeer);
+						} else {
+							torrent.getCompletedPieces().addPiece(piece);
+							torrent.getStrategy()
+									.getDownloadStrategy()
+									.pieceComplete(torrent, piece, torrentPeer);
+						}
+					}
+				});
+			}
+		}));
+	}
+
+	/**
+	 * Submits the write to the disk executor. If the executor rejects it, or
+	 * earlier writes are still deferred, the write is deferred and reading
+	 * from the channel suspended.
+	 * 
+	 * @param ctx
+	 *            the channel handler context
+	 * @param write
+	 *            the write
+	 */
+	private void submitWrite(ChannelHandlerContext ctx, DeferredWrite write) {
+		if (deferredWrites.isEmpty()) {
+			try {
+				controller.getDiskExecutor().execute(write.task);
+				return;
+			} catch (RejectedExecutionException e) {
+				scheduleDeferredWrites(ctx);
+			}
+		}
+		deferredWrites.add(write);
+		ctx.channel().config().setAutoRead(false);
+	}
+
+	/**
+	 * Resubmits the deferred writes, in order, until the disk executor
+	 * rejects one again. Writes are discarded once the executor has been shut
+	 * down.
+	 * 
+	 * @param ctx
+	 *            the channel handler context
+	 */
+	private void submitDeferredWrites(ChannelHandlerContext ctx) {
+		final ExecutorService executor = controller.getDiskExecutor();
+		while (!deferredWrites.isEmpty()) {
+			final DeferredWrite write = deferredWrites.peek();
+			if (executor.isShutdown()) {
+				write.message.release();
+			} else {
+				try {
+					executor.execute(write.task);
+				} catch (RejectedExecutionException e) {
+					scheduleDeferredWrites(ctx);
+					return;
+				}
+			}
+			deferredWrites.remove();
+		}
+		if (pendingWrites <= controller.getConfig().getMaximumPendingWrites() / 2)
+			ctx.channel().config().setAutoRead(true);
+	}
+
+	/**
+	 * Schedules the deferred writes to be resubmitted on the channel event
+	 * loop once the disk had time to catch up
+	 * 
+	 * @param ctx
+	 *            the channel handler context
+	 */
+	private void scheduleDeferredWrites(final ChannelHandlerContext ctx) {
+		ctx.executor().schedule(new Runnable() {
+			@Override
+			public void run() {
+				submitDeferredWrites(ctx);
+			}
+		}, controller.getConfig().getDiskRetryDelay(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * A block write waiting to be submitted to the disk executor
+	 * 
+	 * @author <a href="http://www.rogiel.com">Rogiel</a>
+	 */
+	private static class DeferredWrite {
+		/**
+		 * The block message, released if the write is discarded
+		 */
+		private final BlockMessage message;
+		/**
+		 * The disk task writing the block
+		 */
+		private final Runnable task;
+
+		/**
+		 * @param message
+		 *            the block message
+		 * @param task
+		 *            the disk task writing the block
+		 */
+		private DeferredWrite(BlockMessage message, Runnable task) {
+			this.message = message;
+			this.task = task;
+		}
+	}
 }
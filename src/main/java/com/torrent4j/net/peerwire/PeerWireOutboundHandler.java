@@ -14,9 +14,7 @@ import com.torrent4j.model.TorrentPieceBlock;
 import com.torrent4j.net.peerwire.codec.PeerWireFrameEncoder;
 import com.torrent4j.net.peerwire.codec.PeerWireMessageEncoder;
 import com.torrent4j.net.peerwire.messages.BlockMessage;
-import com.torrent4j.net.peerwire.messages.CancelMessage;
 import com.torrent4j.net.peerwire.messages.HandshakeMessage;
-import com.torrent4j.net.peerwire.messages.RequestMessage;
 
 public class PeerWireOutboundHandler extends ChannelOutboundHandlerAdapter {
 	@SuppressWarnings("unused")
@@ -52,7 +50,7 @@ public class PeerWireOutboundHandler extends ChannelOutboundHandlerAdapter {
 				final TorrentPiece piece = peer.getTorrent().getPiece(
 						message.pieceIndex);
 				final TorrentPieceBlock block = piece.getBlock(message.begin,
-						message.data.remaining());
+						message.getLength());
 
 				peer.getTorrentPeer().getState().setLastUploadedBlock(block);
 				peer.getTorrentPeer().getState()
@@ -62,37 +60,14 @@ public class PeerWireOutboundHandler extends ChannelOutboundHandlerAdapter {
 					@Override
 					public void operationComplete(ChannelFuture future)
 							throws Exception {
+						peer.getTorrentPeer().getState().getUploads().sent();
 						if (!future.isSuccess())
 							return;
-						peer.getTorrentPeer().getState()
-								.setUploadRequestedBlock(null);
-						peer.getTorrentPeer().getState()
-								.setUploadRequestedDate(null);
-					}
-				});
-			} else if (msg instanceof RequestMessage) {
-				final RequestMessage message = (RequestMessage) msg;
-
-				final TorrentPiece piece = peer.getTorrent().getPiece(
-						message.pieceIndex);
-				final TorrentPieceBlock block = piece.getBlock(message.begin,
-						message.length);
-
-				peer.getTorrentPeer().getState()
-						.setDownloadRequestedBlock(block);
-				peer.getTorrentPeer().getState()
-						.setDownloadRequestedDate(new Date());
-			} else if (msg instanceof CancelMessage) {
-				promise.addListener(new ChannelFutureListener() {
-					@Override
-					public void operationComplete(ChannelFuture future)
-							throws Exception {
-						if (!future.isSuccess())
-							return;
-						peer.getTorrentPeer().getState()
-								.setDownloadRequestedBlock(null);
-						peer.getTorrentPeer().getState()
-								.setDownloadRequestedDate(null);
+						// let the strategy send the next queued blocks
+						peer.getStrategy()
+								.getUploadStrategy()
+								.blockUploaded(peer.getTorrent(), block,
+										peer.getTorrentPeer());
 					}
 				});
 			}
@@ -100,4 +75,12 @@ public class PeerWireOutboundHandler extends ChannelOutboundHandlerAdapter {
 			super.write(ctx, msg, promise);
 		}
 	}
+
+	/**
+	 * @param peer
+	 *            the peer connected through this channel
+	 */
+	public void setPeer(PeerWireProtocolPeer peer) {
+		this.peer = peer;
+	}
 }
@@ -2,6 +2,7 @@ package com.torrent4j.net.peerwire;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
@@ -14,8 +15,11 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import com.torrent4j.TorrentController;
+import com.torrent4j.model.Torrent;
 import com.torrent4j.model.peer.TorrentPeer;
 import com.torrent4j.net.TorrentProtocol;
 
@@ -30,21 +34,28 @@ public class PeerWireProtocol implements TorrentProtocol {
 	private final Bootstrap clientBootstrap = new Bootstrap();
 
 	private NioServerSocketChannel serverChannel;
+	private ScheduledFuture<?> chokeTask;
+	private ScheduledFuture<?> haveTask;
 
 	@Override
-	public void start(TorrentController controller, int listenPort) {
+	public void start(final TorrentController controller, int listenPort) {
+		final ByteBufAllocator allocator = controller.getConfig()
+				.getAllocator();
 		serverBootstrap
 				.group(bossGroup, workerGroup)
 				.channel(NioServerSocketChannel.class)
 				.option(ChannelOption.SO_BACKLOG, 100)
+				.option(ChannelOption.ALLOCATOR, allocator)
 				.localAddress(listenPort)
 				.childOption(ChannelOption.TCP_NODELAY, true)
+				.childOption(ChannelOption.ALLOCATOR, allocator)
 				.childHandler(
 						new PeerWireChannelInitializer(controller, threadPool)).validate();
 		clientBootstrap
 				.group(workerGroup)
 				.channel(NioSocketChannel.class)
 				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 100)
+				.option(ChannelOption.ALLOCATOR, allocator)
 				//.option(ChannelOption.SO_BACKLOG, 100)
 				.handler(new PeerWireChannelInitializer(controller, threadPool)).validate();
 
@@ -53,13 +64,67 @@ public class PeerWireProtocol implements TorrentProtocol {
 					Inet4Address.getByName("0.0.0.0"), listenPort)).channel();
 		} catch (UnknownHostException e) {
 		}
+
+		final long interval = controller.getConfig().getChokeInterval();
+		chokeTask = threadPool.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				rechoke(controller);
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+
+		final long haveInterval = controller.getConfig()
+				.getHaveBroadcastInterval();
+		haveTask = threadPool.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				broadcastHaves(controller);
+			}
+		}, haveInterval, haveInterval, TimeUnit.MILLISECONDS);
 	}
 
 	@Override
 	public void stop() {
+		if (chokeTask != null)
+			chokeTask.cancel(false);
+		if (haveTask != null)
+			haveTask.cancel(false);
 		serverChannel.close();
 	}
 
+	/**
+	 * Performs a choking round on all torrents
+	 * 
+	 * @param controller
+	 *            the controller
+	 */
+	private void rechoke(TorrentController controller) {
+		for (final Torrent torrent : controller.getTorrents()) {
+			try {
+				torrent.getStrategy().getPeerStrategy().rechoke(torrent);
+			} catch (Exception e) {
+				// an exception would cancel further rounds
+			}
+		}
+	}
+
+	/**
+	 * Announces the pieces recently completed on all torrents
+	 * 
+	 * @param controller
+	 *            the controller
+	 */
+	private void broadcastHaves(TorrentController controller) {
+		for (final Torrent torrent : controller.getTorrents()) {
+			try {
+				torrent.getStrategy().getDownloadStrategy()
+						.broadcastHaves(torrent);
+			} catch (Exception e) {
+				// an exception would cancel further broadcasts
+			}
+		}
+	}
+
 	@Override
 	public boolean connect(TorrentPeer peer) {
 		final ChannelFuture future = clientBootstrap.connect(peer.getAddress())
@@ -1,10 +1,16 @@
 package com.torrent4j.net.peerwire;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultFileRegion;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.BitSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.torrent4j.model.Torrent;
 import com.torrent4j.model.peer.TorrentPeer;
@@ -21,12 +27,79 @@ import com.torrent4j.net.peerwire.messages.NotInterestedMessage;
 import com.torrent4j.net.peerwire.messages.PortMessage;
 import com.torrent4j.net.peerwire.messages.RequestMessage;
 import com.torrent4j.net.peerwire.messages.UnchokeMessage;
+import com.torrent4j.storage.TorrentStorageRegion;
 import com.torrent4j.strategy.TorrentStrategy;
 
+/**
+ * The peer wire implementation of {@link TorrentProtocolPeer}. Messages are
+ * written to the channel but not flushed immediately:
+ * <ul>
+ * <li>messages written while the channel is reading are flushed together
+ * once the read cycle completes (see {@link #endReadCycle()});</li>
+ * <li>messages written at any other moment, or from other threads, are
+ * flushed by a single task scheduled on the channel event loop, so that
+ * messages written in a row are flushed together;</li>
+ * <li>once {@link #FLUSH_THRESHOLD} bytes are pending, they are flushed
+ * right away.</li>
+ * </ul>
+ * Messages written from other threads are handed to the event loop, which
+ * does all writes and flush bookkeeping, so that a scheduled flush never
+ * runs before a message counted as pending has been written.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
 public class PeerWireProtocolPeer implements TorrentProtocolPeer {
+	/**
+	 * The amount of pending bytes after which messages are flushed without
+	 * waiting for the end of the read cycle
+	 */
+	public static final int FLUSH_THRESHOLD = 64 * 1024;
+	/**
+	 * The estimated length of messages other than blocks, most of which are
+	 * fixed sized and short
+	 */
+	private static final int MESSAGE_LENGTH = 17;
+
 	private final Channel channel;
 	private TorrentPeer peer;
 
+	/**
+	 * Whether the channel is in a read cycle. Only accessed from the channel
+	 * event loop.
+	 */
+	private boolean reading = false;
+	/**
+	 * Whether a flush has already been scheduled on the event loop
+	 */
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	/**
+	 * Flushes pending messages, once scheduled
+	 */
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled.set(false);
+			flush();
+		}
+	};
+
+	/**
+	 * The number of messages written but not yet flushed
+	 */
+	private int pendingMessages = 0;
+	/**
+	 * The estimated amount of bytes written but not yet flushed
+	 */
+	private long pendingBytes = 0;
+	/**
+	 * The number of flushes performed
+	 */
+	private long flushes = 0;
+	/**
+	 * The number of messages flushed
+	 */
+	private long flushedMessages = 0;
+
 	public PeerWireProtocolPeer(Channel channel) {
 		this.channel = channel;
 	}
@@ -67,6 +140,28 @@ public class PeerWireProtocolPeer implements TorrentProtocolPeer {
 		write(new BlockMessage(pieceIndex, start, data));
 	}
 
+	@Override
+	public void sendBlock(int pieceIndex, int start, ByteBuf data) {
+		write(new BlockMessage(pieceIndex, start, data));
+	}
+
+	@Override
+	public void sendBlock(int pieceIndex, int start,
+			final TorrentStorageRegion region) {
+		// the storage region is closed once the file region is released, the
+		// channel might be shared with other transfers
+		write(new BlockMessage(pieceIndex, start, new DefaultFileRegion(
+				region.getChannel(), region.getPosition(), region.getLength()) {
+			@Override
+			protected void deallocate() {
+				try {
+					region.close();
+				} catch (IOException e) {
+				}
+			}
+		}));
+	}
+
 	@Override
 	public void bitField(BitSet bitSet) {
 		write(new BitFieldMessage(bitSet));
@@ -107,8 +202,129 @@ public class PeerWireProtocolPeer implements TorrentProtocolPeer {
 		write(new KeepAliveMessage());
 	}
 
-	public ChannelFuture write(PeerWireMessage message) {
-		return channel.write(message);
+	@Override
+	public void flush() {
+		synchronized (this) {
+			if (pendingMessages == 0)
+				return;
+			flushes++;
+			flushedMessages += pendingMessages;
+			pendingMessages = 0;
+			pendingBytes = 0;
+		}
+		channel.flush();
+	}
+
+	/**
+	 * Writes the message to the channel. The message is flushed later, see
+	 * the class documentation.
+	 * 
+	 * @param message
+	 *            the message
+	 * @return the write future
+	 */
+	public ChannelFuture write(final PeerWireMessage message) {
+		if (!channel.eventLoop().inEventLoop()) {
+			final ChannelPromise promise = channel.newPromise();
+			try {
+				channel.eventLoop().execute(new Runnable() {
+					@Override
+					public void run() {
+						write(message, promise);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// the event loop is shutting down
+				promise.setFailure(e);
+			}
+			return promise;
+		}
+		return write(message, channel.newPromise());
+	}
+
+	/**
+	 * Writes the message to the channel and updates the pending messages.
+	 * Must be called from the channel event loop.
+	 * 
+	 * @param message
+	 *            the message
+	 * @param promise
+	 *            the write promise
+	 * @return the write future
+	 */
+	private ChannelFuture write(PeerWireMessage message, ChannelPromise promise) {
+		final ChannelFuture future = channel.write(message, promise);
+		final boolean full;
+		synchronized (this) {
+			pendingMessages++;
+			pendingBytes += getLength(message);
+			full = pendingBytes >= FLUSH_THRESHOLD;
+		}
+		if (full)
+			flush();
+		else if (!reading)
+			scheduleFlush();
+		return future;
+	}
+
+	/**
+	 * Marks the beginning of a read cycle. Messages written from now on, on
+	 * the event loop, are only flushed on {@link #endReadCycle()}.
+	 */
+	public void beginReadCycle() {
+		reading = true;
+	}
+
+	/**
+	 * Marks the end of a read cycle and flushes all messages written during
+	 * it
+	 */
+	public void endReadCycle() {
+		reading = false;
+		flush();
+	}
+
+	/**
+	 * Schedules a flush on the channel event loop, unless one is already
+	 * scheduled
+	 */
+	private void scheduleFlush() {
+		if (flushScheduled.compareAndSet(false, true))
+			channel.eventLoop().execute(flushTask);
+	}
+
+	/**
+	 * @param message
+	 *            the message
+	 * @return the estimated message length on the wire
+	 */
+	private static int getLength(PeerWireMessage message) {
+		if (message instanceof BlockMessage)
+			return 13 + ((BlockMessage) message).getLength();
+		return MESSAGE_LENGTH;
+	}
+
+	/**
+	 * @return the number of flushes performed on the channel
+	 */
+	public synchronized long getFlushCount() {
+		return flushes;
+	}
+
+	/**
+	 * @return the number of messages flushed to the channel
+	 */
+	public synchronized long getFlushedMessageCount() {
+		return flushedMessages;
+	}
+
+	/**
+	 * @return the average number of messages sent on each flush
+	 */
+	public synchronized double getMessagesPerFlush() {
+		if (flushes == 0)
+			return 0;
+		return (double) flushedMessages / flushes;
 	}
 
 	public TorrentPeer getTorrentPeer() {
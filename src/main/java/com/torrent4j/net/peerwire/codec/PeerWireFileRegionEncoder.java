@@ -0,0 +1,54 @@
+package com.torrent4j.net.peerwire.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+
+import com.torrent4j.net.peerwire.messages.BlockMessage;
+
+/**
+ * Writes {@link BlockMessage}s backed by a file region. The 13 bytes message
+ * header is written from a small buffer and the block data itself is written
+ * as a {@link io.netty.channel.FileRegion}, allowing the transport to use
+ * <code>sendfile</code> instead of copying the data into memory.
+ * <p>
+ * Blocks backed by a {@link ByteBuf}, read from the storage into a pooled
+ * buffer, are handled the same way: the buffer is handed to the transport as
+ * is, instead of being copied into the encoder output.
+ * <p>
+ * Since the message is already framed here, this handler must be placed
+ * closer to the socket than {@link PeerWireMessageEncoder} and
+ * {@link PeerWireFrameEncoder}, which ignore file backed messages.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class PeerWireFileRegionEncoder extends ChannelOutboundHandlerAdapter {
+	/**
+	 * The header length: message length, message id, piece index and begin
+	 */
+	private static final int HEADER_LENGTH = 13;
+
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg,
+			ChannelPromise promise) throws Exception {
+		if (!(msg instanceof BlockMessage)
+				|| !((BlockMessage) msg).isPassThrough()) {
+			ctx.write(msg, promise);
+			return;
+		}
+		final BlockMessage message = (BlockMessage) msg;
+
+		final ByteBuf header = ctx.alloc().buffer(HEADER_LENGTH);
+		header.writeInt(HEADER_LENGTH - 4 + message.getLength());
+		header.writeByte(BlockMessage.MESSAGE_ID);
+		header.writeInt(message.pieceIndex);
+		header.writeInt(message.begin);
+
+		ctx.write(header);
+		if (message.isFileBacked())
+			ctx.write(message.region, promise);
+		else
+			ctx.write(message.buffer, promise);
+	}
+}
@@ -1,9 +1,12 @@
 package com.torrent4j.net.peerwire.codec;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.CorruptedFrameException;
 
+import java.util.Collections;
 import java.util.List;
 
 import com.torrent4j.net.peerwire.PeerWireMessage;
@@ -20,66 +23,285 @@ import com.torrent4j.net.peerwire.messages.PortMessage;
 import com.torrent4j.net.peerwire.messages.RequestMessage;
 import com.torrent4j.net.peerwire.messages.UnchokeMessage;
 
-public class PeerWireMessageDecoder extends ReplayingDecoder<ByteBuf> {
+/**
+ * Splits the inbound stream into frames and decodes each frame into a
+ * {@link PeerWireMessage} in a single pass. The first frame is always the
+ * handshake, all others are length prefixed messages whose length is
+ * validated against the message type before being decoded.
+ * <p>
+ * Inbound buffers are never copied nor compacted: bytes left over from a
+ * read are kept as slices, and a message spanning several reads is decoded
+ * from a {@link CompositeByteBuf} over them. {@link BlockMessage} data is a
+ * retained slice of those buffers (only copied if it spans several of them)
+ * and must be released with {@link BlockMessage#release()} once it has been
+ * stored.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class PeerWireMessageDecoder extends ChannelInboundHandlerAdapter {
+	/**
+	 * The maximum length accepted for a message. Large enough for the
+	 * bitfield of a torrent with 8 million pieces.
+	 */
+	public static final int MAXIMUM_MESSAGE_LENGTH = 1024 * 1024;
+	/**
+	 * The length of the handshake, not counting the protocol string
+	 */
+	private static final int HANDSHAKE_LENGTH = 49;
+	/**
+	 * The maximum number of buffers a pending message can span
+	 */
+	private static final int MAXIMUM_COMPONENTS = 1024;
+
+	/**
+	 * The message types, indexed by message ID
+	 */
+	private static final MessageType[] TYPES = new MessageType[10];
+	static {
+		TYPES[ChokeMessage.MESSAGE_ID] = new MessageType(0, 0) {
+			@Override
+			public PeerWireMessage create() {
+				return new ChokeMessage();
+			}
+		};
+		TYPES[UnchokeMessage.MESSAGE_ID] = new MessageType(0, 0) {
+			@Override
+			public PeerWireMessage create() {
+				return new UnchokeMessage();
+			}
+		};
+		TYPES[InterestedMessage.MESSAGE_ID] = new MessageType(0, 0) {
+			@Override
+			public PeerWireMessage create() {
+				return new InterestedMessage();
+			}
+		};
+		TYPES[NotInterestedMessage.MESSAGE_ID] = new MessageType(0, 0) {
+			@Override
+			public PeerWireMessage create() {
+				return new NotInterestedMessage();
+			}
+		};
+		TYPES[HaveMessage.MESSAGE_ID] = new MessageType(4, 4) {
+			@Override
+			public PeerWireMessage create() {
+				return new HaveMessage();
+			}
+		};
+		TYPES[BitFieldMessage.MESSAGE_ID] = new MessageType(0,
+				MAXIMUM_MESSAGE_LENGTH) {
+			@Override
+			public PeerWireMessage create() {
+				return new BitFieldMessage();
+			}
+		};
+		TYPES[RequestMessage.MESSAGE_ID] = new MessageType(12, 12) {
+			@Override
+			public PeerWireMessage create() {
+				return new RequestMessage();
+			}
+		};
+		TYPES[BlockMessage.MESSAGE_ID] = new MessageType(8,
+				MAXIMUM_MESSAGE_LENGTH) {
+			@Override
+			public PeerWireMessage create() {
+				return new BlockMessage();
+			}
+		};
+		TYPES[CancelMessage.MESSAGE_ID] = new MessageType(12, 12) {
+			@Override
+			public PeerWireMessage create() {
+				return new CancelMessage();
+			}
+		};
+		TYPES[PortMessage.MESSAGE_ID] = new MessageType(2, 2) {
+			@Override
+			public PeerWireMessage create() {
+				return new PortMessage();
+			}
+		};
+	}
+
+	/**
+	 * Whether the handshake has already been received
+	 */
 	private boolean handshaked = false;
-	
+	/**
+	 * The bytes left over from previous reads, if any
+	 */
+	private CompositeByteBuf pending;
+	/**
+	 * Whether a corrupted frame has been received. The stream can no longer
+	 * be parsed and anything read until the channel closes is discarded.
+	 */
+	private boolean corrupted = false;
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg)
+			throws Exception {
+		if (!(msg instanceof ByteBuf)) {
+			ctx.fireChannelRead(msg);
+			return;
+		}
+		if (corrupted) {
+			((ByteBuf) msg).release();
+			return;
+		}
+		ByteBuf buffer = (ByteBuf) msg;
+		if (pending != null) {
+			pending.addComponent(buffer);
+			pending.writerIndex(pending.writerIndex() + buffer.readableBytes());
+			buffer = pending;
+			pending = null;
+		}
+
+		try {
+			decode(ctx, buffer);
+			if (buffer.isReadable())
+				pending = keep(ctx, buffer);
+		} catch (CorruptedFrameException e) {
+			// later reads would be parsed from the middle of a message
+			corrupted = true;
+			release();
+			ctx.close();
+			throw e;
+		} finally {
+			buffer.release();
+		}
+	}
+
 	@Override
-	protected void decode(ChannelHandlerContext ctx, ByteBuf buffer,
-			List<Object> out) throws Exception {
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		release();
+		super.channelInactive(ctx);
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		release();
+	}
+
+	/**
+	 * Decodes and fires all complete messages in the buffer
+	 * 
+	 * @param ctx
+	 *            the channel handler context
+	 * @param buffer
+	 *            the buffer
+	 */
+	private void decode(ChannelHandlerContext ctx, ByteBuf buffer) {
+		while (buffer.isReadable()) {
+			final int index = buffer.readerIndex();
 			if (!handshaked) {
+				final int length = HANDSHAKE_LENGTH
+						+ buffer.getUnsignedByte(index);
+				if (buffer.readableBytes() < length)
+					return;
 				final HandshakeMessage message = new HandshakeMessage();
-				message.read(buffer);
-				
-				out.add(message);
+				message.read(buffer.readSlice(length));
+				handshaked = true;
+				ctx.fireChannelRead(message);
+				continue;
+			}
+
+			if (buffer.readableBytes() < 4)
 				return;
-			} else {
-				if(buffer.readableBytes() == 0) {
-					out.add(new KeepAliveMessage());
-					return;
-				}
-				
-				final byte opcode = buffer.readByte();
-				final PeerWireMessage message;
-				switch (opcode) {
-				case CancelMessage.MESSAGE_ID:
-					message = new CancelMessage();
-					break;
-				case BitFieldMessage.MESSAGE_ID:
-					message = new BitFieldMessage();
-					break;
-				case ChokeMessage.MESSAGE_ID:
-					message = new ChokeMessage();
-					break;
-				case HaveMessage.MESSAGE_ID:
-					message = new HaveMessage();
-					break;
-				case InterestedMessage.MESSAGE_ID:
-					message = new InterestedMessage();
-					break;
-				case NotInterestedMessage.MESSAGE_ID:
-					message = new NotInterestedMessage();
-					break;
-				case BlockMessage.MESSAGE_ID:
-					message = new BlockMessage();
-					break;
-				case PortMessage.MESSAGE_ID:
-					message = new PortMessage();
-					break;
-				case RequestMessage.MESSAGE_ID:
-					message = new RequestMessage();
-					break;
-				case UnchokeMessage.MESSAGE_ID:
-					message = new UnchokeMessage();
-					break;
-				default:
-					return;
-				}
-				message.read(buffer);
-				out.add(message);
+			final int length = buffer.getInt(index);
+			if (length < 0 || length > MAXIMUM_MESSAGE_LENGTH)
+				throw new CorruptedFrameException("Invalid message length: "
+						+ length);
+			if (buffer.readableBytes() < 4 + length)
+				return;
+			buffer.skipBytes(4);
+			if (length == 0) {
+				ctx.fireChannelRead(new KeepAliveMessage());
+				continue;
 			}
+
+			final int id = buffer.readUnsignedByte();
+			final ByteBuf payload = buffer.readSlice(length - 1);
+			// unknown messages, such as extensions, are ignored
+			if (id >= TYPES.length || TYPES[id] == null)
+				continue;
+			final MessageType type = TYPES[id];
+			if (payload.readableBytes() < type.minimumLength
+					|| payload.readableBytes() > type.maximumLength)
+				throw new CorruptedFrameException("Invalid length " + length
+						+ " for message " + id);
+			final PeerWireMessage message = type.create();
+			message.read(payload);
+			ctx.fireChannelRead(message);
+		}
+	}
+
+	/**
+	 * Keeps the unread bytes of the buffer for the next read, without
+	 * copying them. The slices are taken from the buffers underlying the
+	 * composite buffer, so that slices never nest.
+	 * 
+	 * @param ctx
+	 *            the channel handler context
+	 * @param buffer
+	 *            the buffer
+	 * @return the buffer holding the unread bytes
+	 */
+	private CompositeByteBuf keep(ChannelHandlerContext ctx, ByteBuf buffer) {
+		final CompositeByteBuf kept = ctx.alloc().compositeBuffer(
+				MAXIMUM_COMPONENTS);
+		final List<ByteBuf> slices;
+		if (buffer instanceof CompositeByteBuf) {
+			slices = ((CompositeByteBuf) buffer).decompose(
+					buffer.readerIndex(), buffer.readableBytes());
+		} else {
+			slices = Collections.singletonList(buffer.slice());
+		}
+		for (final ByteBuf slice : slices) {
+			kept.addComponent(slice.retain());
+			kept.writerIndex(kept.writerIndex() + slice.readableBytes());
+		}
+		return kept;
 	}
 
-	public void setHandshaked(boolean handshaked) {
-		this.handshaked = handshaked;
+	/**
+	 * Releases the bytes left over from previous reads
+	 */
+	private void release() {
+		if (pending != null) {
+			pending.release();
+			pending = null;
+		}
+	}
+
+	/**
+	 * Creates messages of a given type and knows the allowed lengths of their
+	 * payload
+	 * 
+	 * @author <a href="http://www.rogiel.com">Rogiel</a>
+	 */
+	private static abstract class MessageType {
+		/**
+		 * The minimum payload length
+		 */
+		private final int minimumLength;
+		/**
+		 * The maximum payload length
+		 */
+		private final int maximumLength;
+
+		/**
+		 * @param minimumLength
+		 *            the minimum payload length
+		 * @param maximumLength
+		 *            the maximum payload length
+		 */
+		private MessageType(int minimumLength, int maximumLength) {
+			this.minimumLength = minimumLength;
+			this.maximumLength = maximumLength;
+		}
+
+		/**
+		 * @return a new, empty, message of this type
+		 */
+		public abstract PeerWireMessage create();
 	}
 }
@@ -5,11 +5,21 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
 
 import com.torrent4j.net.peerwire.PeerWireMessage;
+import com.torrent4j.net.peerwire.messages.BlockMessage;
 import com.torrent4j.net.peerwire.messages.KeepAliveMessage;
 
 public class PeerWireMessageEncoder extends MessageToByteEncoder<PeerWireMessage> {
 	private boolean handshaked = false;
 
+	@Override
+	public boolean acceptOutboundMessage(Object msg) throws Exception {
+		// file and buffer backed blocks are written by
+		// PeerWireFileRegionEncoder
+		if (msg instanceof BlockMessage && ((BlockMessage) msg).isPassThrough())
+			return false;
+		return super.acceptOutboundMessage(msg);
+	}
+
 	@Override
 	protected void encode(ChannelHandlerContext ctx, PeerWireMessage message,
 			ByteBuf buffer) throws Exception {
@@ -1,6 +1,7 @@
 package com.torrent4j.net.peerwire.messages;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.FileRegion;
 
 import java.nio.ByteBuffer;
 
@@ -12,6 +13,12 @@ public class BlockMessage extends AbstractPeerWireMessage {
 	public int pieceIndex;
 	public int begin;
 	public ByteBuffer data;
+	public FileRegion region;
+	/**
+	 * The inbound buffer backing {@link #data}, for received messages, or the
+	 * block data itself, for messages being sent
+	 */
+	public ByteBuf buffer;
 
 	public BlockMessage() {
 		super(MESSAGE_ID);
@@ -24,6 +31,48 @@ public class BlockMessage extends AbstractPeerWireMessage {
 		this.data = data;
 	}
 
+	public BlockMessage(int pieceIndex, int begin, ByteBuf buffer) {
+		super(MESSAGE_ID);
+		this.pieceIndex = pieceIndex;
+		this.begin = begin;
+		this.buffer = buffer;
+	}
+
+	public BlockMessage(int pieceIndex, int begin, FileRegion region) {
+		super(MESSAGE_ID);
+		this.pieceIndex = pieceIndex;
+		this.begin = begin;
+		this.region = region;
+	}
+
+	/**
+	 * @return <code>true</code> if the block data is a file region that should
+	 *         be transferred directly from disk
+	 */
+	public boolean isFileBacked() {
+		return region != null;
+	}
+
+	/**
+	 * @return <code>true</code> if the block data is written to the channel as
+	 *         is, instead of being encoded with the message: either a file
+	 *         region or a buffer
+	 */
+	public boolean isPassThrough() {
+		return region != null || data == null;
+	}
+
+	/**
+	 * @return the block data length
+	 */
+	public int getLength() {
+		if (region != null)
+			return (int) region.count();
+		if (data == null)
+			return buffer.readableBytes();
+		return data.remaining();
+	}
+
 	@Override
 	public void writeImpl(ByteBuf buffer) {
 		buffer.writeInt(pieceIndex);
@@ -35,7 +84,29 @@ public class BlockMessage extends AbstractPeerWireMessage {
 	public void readImpl(ByteBuf buffer) {
 		pieceIndex = buffer.readInt();
 		begin = buffer.readInt();
-		data = buffer.readBytes(buffer.readableBytes()).nioBuffer();
+		// the data is not copied: it stays on the inbound buffer, which is
+		// retained until release() is called
+		this.buffer = buffer.readSlice(buffer.readableBytes()).retain();
+		if (this.buffer.nioBufferCount() == 1) {
+			data = this.buffer.nioBuffer();
+		} else {
+			// the block spans several inbound buffers and has to be merged
+			data = ByteBuffer.allocate(this.buffer.readableBytes());
+			this.buffer.getBytes(this.buffer.readerIndex(), data);
+			data.flip();
+			release();
+		}
+	}
+
+	/**
+	 * Releases the inbound buffer backing the block data of a received
+	 * message. The data must no longer be used after this call.
+	 */
+	public void release() {
+		if (buffer == null)
+			return;
+		buffer.release();
+		buffer = null;
 	}
 
 	/*
@@ -46,6 +117,6 @@ public class BlockMessage extends AbstractPeerWireMessage {
 	@Override
 	public String toString() {
 		return "BLOCK [pieceIndex=" + pieceIndex + ", begin=" + begin
-				+ ", data=" + data + "]";
+				+ ", data=" + (region != null ? region : data) + "]";
 	}
 }
@@ -40,8 +40,11 @@ public class HandshakeMessage implements PeerWireMessage {
 		protocolString = new String(str);
 		//protocolString = buffer.readBytes
 		reserved = buffer.readLong();
-		torrentHash = buffer.readBytes(20).array();
-		peerID = buffer.readBytes(20).toString(Charset.forName("UTF-8"));
+		torrentHash = new byte[20];
+		buffer.readBytes(torrentHash);
+		final byte[] id = new byte[20];
+		buffer.readBytes(id);
+		peerID = new String(id, Charset.forName("UTF-8"));
 	}
 
 	/*
@@ -20,12 +20,12 @@ public class PortMessage extends AbstractPeerWireMessage {
 
 	@Override
 	public void writeImpl(ByteBuf buffer) {
-		buffer.writeInt(listenPort);
+		buffer.writeShort(listenPort);
 	}
 
 	@Override
 	public void readImpl(ByteBuf buffer) {
-		listenPort = buffer.readInt();
+		listenPort = buffer.readUnsignedShort();
 	}
 
 	/*
@@ -29,6 +29,12 @@ public class PeerTrafficShapingHandler extends ChannelTrafficShapingHandler {
 		}
 	}
 
+	@Override
+	protected long calculateSize(Object msg) {
+		final long size = TrafficAccounting.calculateSize(msg);
+		return size >= 0 ? size : super.calculateSize(msg);
+	}
+
 	@Override
 	protected void doAccounting(TrafficCounter counter) {
 		if (peer == null)
@@ -31,6 +31,12 @@ public class TorrentTrafficShapingHandler extends GlobalTrafficShapingHandler {
 		}
 	}
 
+	@Override
+	protected long calculateSize(Object msg) {
+		final long size = TrafficAccounting.calculateSize(msg);
+		return size >= 0 ? size : super.calculateSize(msg);
+	}
+
 	@Override
 	protected void doAccounting(TrafficCounter counter) {
 		if (torrent == null)
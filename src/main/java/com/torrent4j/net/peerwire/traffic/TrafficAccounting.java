@@ -0,0 +1,30 @@
+package com.torrent4j.net.peerwire.traffic;
+
+import io.netty.channel.FileRegion;
+
+/**
+ * Message size accounting shared by the traffic shaping handlers, which
+ * extend different netty handlers and can't share a common base class.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+final class TrafficAccounting {
+	/**
+	 * Returns the size of the messages netty does not account for. File
+	 * regions are not accounted by netty, so zero-copy uploads would escape
+	 * the limits and the measured upload speed.
+	 * 
+	 * @param msg
+	 *            the message
+	 * @return the message size or <code>-1</code> if netty should calculate
+	 *         it
+	 */
+	static long calculateSize(Object msg) {
+		if (msg instanceof FileRegion)
+			return ((FileRegion) msg).count();
+		return -1;
+	}
+
+	private TrafficAccounting() {
+	}
+}
@@ -1,10 +1,16 @@
 package com.torrent4j.storage;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import com.torrent4j.model.Torrent;
 import com.torrent4j.model.TorrentPiece;
 import com.torrent4j.util.Hash;
+import com.torrent4j.util.Range;
 
 /**
  * Abstract {@link TorrentStorage} that implements universal that methods that
@@ -22,4 +28,46 @@ public abstract class AbstractTorrentStorage implements TorrentStorage {
 		return new Hash(piece.getHash().getType(), piece.getHash().getType()
 				.hash(buffer));
 	}
+
+	/**
+	 * Writes the buffer through {@link #write(Torrent, Range, ByteBuffer)}.
+	 * Buffers backed by a single memory region, which is the case of pooled
+	 * buffers, are written without being copied.
+	 */
+	@Override
+	public boolean write(Torrent torrent, Range torrentRange, ByteBuf data)
+			throws IOException {
+		if (data.nioBufferCount() == 1)
+			return write(torrent, torrentRange, data.nioBuffer());
+		final ByteBuffer copy = ByteBuffer.allocate(data.readableBytes());
+		data.getBytes(data.readerIndex(), copy);
+		copy.flip();
+		return write(torrent, torrentRange, copy);
+	}
+
+	/**
+	 * Reads the data through {@link #read(Torrent, Range)}. Heap buffers are
+	 * wrapped without copying, direct buffers are copied into a buffer from
+	 * the allocator, since wrapped direct buffers do not expose their content
+	 * reliably to the transport. Implementations able to read directly into
+	 * the allocated buffer should override this method.
+	 */
+	@Override
+	public ByteBuf read(Torrent torrent, Range torrentRange,
+			ByteBufAllocator allocator) throws IOException {
+		final ByteBuffer data = read(torrent, torrentRange);
+		if (data == null)
+			return null;
+		if (!data.isDirect())
+			return Unpooled.wrappedBuffer(data);
+		return allocator.directBuffer(data.remaining()).writeBytes(data);
+	}
+
+	@Override
+	public void allocate(Torrent torrent) throws IOException {
+	}
+
+	@Override
+	public void release(Torrent torrent) {
+	}
 }
@@ -0,0 +1,22 @@
+package com.torrent4j.storage;
+
+/**
+ * The ways {@link FileAwareTorrentStorage} allocates space for a torrent, see
+ * {@link TorrentStorage#allocate(com.torrent4j.model.Torrent)}
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public enum AllocationMode {
+	/**
+	 * Files are created with their full size, but no data is written. On file
+	 * systems supporting sparse files, space is only allocated as pieces are
+	 * written.
+	 */
+	SPARSE,
+	/**
+	 * Files are filled with zeros, from start to end, so that the file system
+	 * allocates them contiguously. Pieces are written as they arrive and the
+	 * allocation fills the holes left between them once it reaches them.
+	 */
+	FULL;
+}
@@ -0,0 +1,63 @@
+package com.torrent4j.storage;
+
+import io.netty.util.concurrent.Future;
+
+import java.nio.ByteBuffer;
+
+import com.torrent4j.model.Torrent;
+import com.torrent4j.model.TorrentPiece;
+import com.torrent4j.util.Hash;
+import com.torrent4j.util.Range;
+
+/**
+ * The non-blocking counterpart of {@link TorrentStorage}. Operations return
+ * immediately and their outcome is delivered through a {@link Future}, so
+ * that several operations can be in progress at once and no thread has to
+ * wait for the disk. Errors that would be thrown as {@link java.io.IOException}
+ * by {@link TorrentStorage} fail the future instead.
+ * <p>
+ * Listeners added to the returned futures may be notified on any thread,
+ * usually the one that completed the operation, and must not block.
+ * Existing {@link TorrentStorage} implementations can be used through
+ * {@link AsyncTorrentStorageAdapter}.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public interface AsyncTorrentStorage {
+	/**
+	 * Writes data into the underlying storage. The buffer must not be changed
+	 * until the operation completes.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param torrentRange
+	 *            the range in which the data is located
+	 * @param data
+	 *            the data itself
+	 * @return the future result, <code>true</code> if the write was
+	 *         successful
+	 */
+	Future<Boolean> writeAsync(Torrent torrent, Range torrentRange,
+			ByteBuffer data);
+
+	/**
+	 * Reads data from the underlying storage
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param torrentRange
+	 *            the range in which the data should be read from
+	 * @return the future data, <code>null</code> if the data is not stored
+	 */
+	Future<ByteBuffer> readAsync(Torrent torrent, Range torrentRange);
+
+	/**
+	 * Calculates the checksum of the stored piece data
+	 * 
+	 * @param piece
+	 *            the piece
+	 * @return the future piece checksum, <code>null</code> if the piece is
+	 *         not stored
+	 */
+	Future<Hash> checksumAsync(TorrentPiece piece);
+}
@@ -0,0 +1,113 @@
+package com.torrent4j.storage;
+
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import com.torrent4j.model.Torrent;
+import com.torrent4j.model.TorrentPiece;
+import com.torrent4j.util.Hash;
+import com.torrent4j.util.Range;
+
+/**
+ * Exposes a blocking {@link TorrentStorage} as an {@link AsyncTorrentStorage}
+ * by running each operation on an {@link Executor}, such as the controller
+ * disk executor. Listeners are notified on the executor thread that ran the
+ * operation.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class AsyncTorrentStorageAdapter implements AsyncTorrentStorage {
+	/**
+	 * The blocking storage
+	 */
+	private final TorrentStorage storage;
+	/**
+	 * The executor running the storage operations
+	 */
+	private final Executor executor;
+
+	/**
+	 * Creates a new instance
+	 * 
+	 * @param storage
+	 *            the blocking storage
+	 * @param executor
+	 *            the executor running the storage operations
+	 */
+	public AsyncTorrentStorageAdapter(TorrentStorage storage, Executor executor) {
+		this.storage = storage;
+		this.executor = executor;
+	}
+
+	@Override
+	public Future<Boolean> writeAsync(final Torrent torrent,
+			final Range torrentRange, final ByteBuffer data) {
+		return submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return storage.write(torrent, torrentRange, data);
+			}
+		});
+	}
+
+	@Override
+	public Future<ByteBuffer> readAsync(final Torrent torrent,
+			final Range torrentRange) {
+		return submit(new Callable<ByteBuffer>() {
+			@Override
+			public ByteBuffer call() throws Exception {
+				return storage.read(torrent, torrentRange);
+			}
+		});
+	}
+
+	@Override
+	public Future<Hash> checksumAsync(final TorrentPiece piece) {
+		return submit(new Callable<Hash>() {
+			@Override
+			public Hash call() throws Exception {
+				return storage.checksum(piece);
+			}
+		});
+	}
+
+	/**
+	 * Runs the operation on the executor
+	 * 
+	 * @param operation
+	 *            the storage operation
+	 * @return the future result of the operation
+	 */
+	private <T> Future<T> submit(final Callable<T> operation) {
+		final Promise<T> promise = ImmediateEventExecutor.INSTANCE
+				.newPromise();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						promise.setSuccess(operation.call());
+					} catch (Exception e) {
+						promise.setFailure(e);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			// the executor rejected the operation
+			promise.setFailure(e);
+		}
+		return promise;
+	}
+
+	/**
+	 * @return the blocking storage
+	 */
+	public TorrentStorage getStorage() {
+		return storage;
+	}
+}
@@ -0,0 +1,634 @@
+package com.torrent4j.storage;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.torrent4j.model.Torrent;
+import com.torrent4j.model.TorrentFile;
+import com.torrent4j.model.TorrentPiece;
+import com.torrent4j.util.Hash;
+import com.torrent4j.util.Range;
+
+/**
+ * This {@link TorrentStorage} instance implements
+ * {@link FileAwareTorrentStorage} on top of NIO.2
+ * {@link AsynchronousFileChannel}s and also implements
+ * {@link AsyncTorrentStorage}. Asynchronous operations spanning several files
+ * transfer all of them at once and complete once the last one does, without
+ * any thread waiting for the disk. The blocking {@link TorrentStorage}
+ * methods wait for the same operations to complete.
+ * <p>
+ * Like {@link PooledNIOTorrentStorage}, open channels are kept in a bounded
+ * LRU cache, one per {@link TorrentFile}, and files are opened read-only until
+ * first written. Each transfer holds a reference to the channel it uses, so
+ * that an evicted channel is only closed once its last transfer completes.
+ * Asynchronous writes to torrents in {@link AllocationMode#FULL} hold their
+ * file allocation lock until they complete, like blocking writes do.
+ * <p>
+ * Completion handlers run on the executor given on construction or, if none,
+ * on the default thread pool of the JVM. The blocking methods wait for
+ * completions on that executor, so it must never be the executor the
+ * blocking methods are called from, such as the controller disk executor:
+ * once all of its threads are waiting, no completion could ever run.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class AsynchronousFileTorrentStorage extends FileAwareTorrentStorage
+		implements AsyncTorrentStorage {
+	/**
+	 * The open options for writing
+	 */
+	private static final Set<OpenOption> WRITE_OPTIONS = Collections
+			.unmodifiableSet(new HashSet<OpenOption>(Arrays.asList(CREATE,
+					READ, WRITE)));
+	/**
+	 * The open options for reading
+	 */
+	private static final Set<OpenOption> READ_OPTIONS = Collections
+			.<OpenOption> singleton(READ);
+
+	/**
+	 * The default maximum number of simultaneously open channels
+	 */
+	public static final int DEFAULT_MAXIMUM_OPEN_FILES = 128;
+
+	/**
+	 * The place where data files are stored
+	 */
+	private final Path root;
+	/**
+	 * The executor running completion handlers, <code>null</code> for the
+	 * default thread pool
+	 */
+	private final ExecutorService executor;
+	/**
+	 * The maximum number of simultaneously open channels
+	 */
+	private final int maximumOpenFiles;
+
+	/**
+	 * The open channels, in access order. The eldest entry is released once
+	 * the cache grows over {@link #maximumOpenFiles}.
+	 */
+	private final Map<TorrentFile, PooledChannel> channels;
+
+	/**
+	 * Creates a new instance
+	 * 
+	 * @param root
+	 *            the place where torrent data is stored
+	 * @param executor
+	 *            the executor running completion handlers, <code>null</code>
+	 *            for the default thread pool. Must not be the executor the
+	 *            blocking methods are called from.
+	 * @param maximumOpenFiles
+	 *            the maximum number of simultaneously open channels
+	 */
+	public AsynchronousFileTorrentStorage(Path root, ExecutorService executor,
+			final int maximumOpenFiles) {
+		if (maximumOpenFiles <= 0)
+			throw new IllegalArgumentException("maximumOpenFiles must be > 0");
+		this.root = root;
+		this.executor = executor;
+		this.maximumOpenFiles = maximumOpenFiles;
+		this.channels = new LinkedHashMap<TorrentFile, PooledChannel>(16,
+				0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Entry<TorrentFile, PooledChannel> eldest) {
+				if (size() <= maximumOpenFiles)
+					return false;
+				eldest.getValue().release();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Creates a new instance with {@link #DEFAULT_MAXIMUM_OPEN_FILES} open
+	 * channels at most
+	 * 
+	 * @param root
+	 *            the place where torrent data is stored
+	 * @param executor
+	 *            the executor running completion handlers, <code>null</code>
+	 *            for the default thread pool. Must not be the executor the
+	 *            blocking methods are called from.
+	 */
+	public AsynchronousFileTorrentStorage(Path root, ExecutorService executor) {
+		this(root, executor, DEFAULT_MAXIMUM_OPEN_FILES);
+	}
+
+	/**
+	 * Creates a new instance which runs completion handlers on the default
+	 * thread pool
+	 * 
+	 * @param root
+	 *            the place where torrent data is stored
+	 */
+	public AsynchronousFileTorrentStorage(Path root) {
+		this(root, null);
+	}
+
+	/**
+	 * Creates a new instance which stores data into the current working
+	 * directory
+	 */
+	public AsynchronousFileTorrentStorage() {
+		this(Paths.get(".").toAbsolutePath());
+	}
+
+	@Override
+	public Path getPath(TorrentFile file) {
+		return root.resolve(file.getFileName());
+	}
+
+	@Override
+	public Future<Boolean> writeAsync(Torrent torrent, Range torrentRange,
+			ByteBuffer data) {
+		return transfer(torrent, torrentRange, data, true);
+	}
+
+	@Override
+	public Future<ByteBuffer> readAsync(Torrent torrent, Range torrentRange) {
+		final ByteBuffer data = ByteBuffer.allocate((int) torrentRange
+				.getLength());
+		final Promise<ByteBuffer> promise = ImmediateEventExecutor.INSTANCE
+				.newPromise();
+		transfer(torrent, torrentRange, data, false).addListener(
+				new FutureListener<Boolean>() {
+					@Override
+					public void operationComplete(Future<Boolean> future) {
+						if (!future.isSuccess())
+							promise.setFailure(future.cause());
+						else if (!future.getNow())
+							promise.setSuccess(null);
+						else
+							promise.setSuccess(data);
+					}
+				});
+		return promise;
+	}
+
+	@Override
+	public Future<Hash> checksumAsync(final TorrentPiece piece) {
+		final Promise<Hash> promise = ImmediateEventExecutor.INSTANCE
+				.newPromise();
+		readAsync(piece.getTorrent(), piece.getTorrentRange()).addListener(
+				new FutureListener<ByteBuffer>() {
+					@Override
+					public void operationComplete(Future<ByteBuffer> future) {
+						if (!future.isSuccess()) {
+							promise.setFailure(future.cause());
+						} else if (future.getNow() == null) {
+							promise.setSuccess(null);
+						} else {
+							promise.setSuccess(new Hash(piece.getHash()
+									.getType(), piece.getHash().getType()
+									.hash(future.getNow())));
+						}
+					}
+				});
+		return promise;
+	}
+
+	@Override
+	protected boolean write(TorrentFile file, Range range, ByteBuffer data)
+			throws IOException {
+		final Promise<Boolean> promise = ImmediateEventExecutor.INSTANCE
+				.newPromise();
+		new FileTransfer(file, range.getStart(), data, true, new Operation(
+				promise, 1)).start();
+		return await(promise);
+	}
+
+	@Override
+	protected boolean read(TorrentFile file, Range range, ByteBuffer data)
+			throws IOException {
+		final Promise<Boolean> promise = ImmediateEventExecutor.INSTANCE
+				.newPromise();
+		new FileTransfer(file, range.getStart(), data, false, new Operation(
+				promise, 1)).start();
+		return await(promise);
+	}
+
+	/**
+	 * Closes the channel for the given <code>file</code>, if open. Transfers
+	 * still using it complete first.
+	 * 
+	 * @param file
+	 *            the file
+	 */
+	public void close(TorrentFile file) {
+		final PooledChannel pooled;
+		synchronized (channels) {
+			pooled = channels.remove(file);
+		}
+		if (pooled != null)
+			pooled.release();
+	}
+
+	@Override
+	public void release(Torrent torrent) {
+		for (final TorrentFile file : torrent.getFiles()) {
+			close(file);
+		}
+		super.release(torrent);
+	}
+
+	/**
+	 * Closes all open channels
+	 */
+	public void close() {
+		final List<PooledChannel> open;
+		synchronized (channels) {
+			open = new ArrayList<>(channels.values());
+			channels.clear();
+		}
+		for (final PooledChannel pooled : open) {
+			pooled.release();
+		}
+	}
+
+	/**
+	 * @return the maximum number of simultaneously open channels
+	 */
+	public int getMaximumOpenFiles() {
+		return maximumOpenFiles;
+	}
+
+	/**
+	 * Returns the cached channel for <code>file</code>, opening it if
+	 * necessary, with a reference held for the caller. A read-only channel is
+	 * replaced once the file is first written.
+	 * 
+	 * @param file
+	 *            the torrent file
+	 * @param write
+	 *            whether the channel is used for writing, in which case the
+	 *            file is created if it does not exists
+	 * @return the cache entry or <code>null</code> if the file does not
+	 *         exists and <code>write</code> is <code>false</code>
+	 * @throws IOException
+	 *             if any error is thrown by NIO.2
+	 */
+	private PooledChannel acquire(TorrentFile file, boolean write)
+			throws IOException {
+		synchronized (channels) {
+			PooledChannel pooled = channels.get(file);
+			if (pooled == null || !pooled.channel.isOpen()
+					|| (write && !pooled.writable)) {
+				final AsynchronousFileChannel channel;
+				try {
+					channel = AsynchronousFileChannel.open(getPath(file),
+							write ? WRITE_OPTIONS : READ_OPTIONS, executor);
+				} catch (NoSuchFileException e) {
+					return null;
+				}
+				final PooledChannel opened = new PooledChannel(channel, write);
+				channels.put(file, opened);
+				if (pooled != null)
+					pooled.release();
+				pooled = opened;
+			}
+			pooled.retain();
+			return pooled;
+		}
+	}
+
+	/**
+	 * Transfers the range to or from all files it spans, at once. Each file
+	 * transfer works on its own view of <code>data</code>, whose position is
+	 * not changed.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param dataRange
+	 *            the range being transferred
+	 * @param data
+	 *            the data to be written or the buffer to read into
+	 * @param write
+	 *            whether data is written
+	 * @return the future result, <code>false</code> if a file to be read
+	 *         does not exist
+	 */
+	private Future<Boolean> transfer(Torrent torrent, Range dataRange,
+			ByteBuffer data, boolean write) {
+		final List<TorrentFile> files = torrent.getFiles();
+		final List<FileTransfer> transfers = new ArrayList<>();
+		final Promise<Boolean> promise = ImmediateEventExecutor.INSTANCE
+				.newPromise();
+		final long end = dataRange.getStart() + dataRange.getLength();
+		long position = dataRange.getStart();
+		int index = torrent.getFileIndex(position);
+		while (index >= 0 && index < files.size() && position < end) {
+			final TorrentFile file = files.get(index++);
+			final long length = Math.min(end,
+					file.getOffset() + file.getLength())
+					- position;
+			if (length <= 0)
+				continue;
+			final ByteBuffer view = data.duplicate();
+			view.position((int) (data.position() + position - dataRange
+					.getStart()));
+			view.limit((int) (view.position() + length));
+			final FileTransfer transfer = new FileTransfer(file, position
+					- file.getOffset(), view, write, null);
+			if (write)
+				transfer.lock = acquireWrite(torrent, file);
+			transfers.add(transfer);
+			position += length;
+		}
+		if (transfers.isEmpty())
+			return promise.setSuccess(true);
+
+		final Operation operation = new Operation(promise, transfers.size());
+		for (final FileTransfer transfer : transfers) {
+			transfer.operation = operation;
+			transfer.start();
+		}
+		return promise;
+	}
+
+	/**
+	 * Waits for a blocking operation to complete
+	 * 
+	 * @param future
+	 *            the operation future
+	 * @return the operation result
+	 * @throws IOException
+	 *             if the operation failed
+	 */
+	private static boolean await(Future<Boolean> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Completes an operation once all of its file transfers have completed
+	 * 
+	 * @author <a href="http://www.rogiel.com">Rogiel</a>
+	 */
+	private static class Operation {
+		/**
+		 * The operation promise
+		 */
+		private final Promise<Boolean> promise;
+		/**
+		 * The number of file transfers not yet completed
+		 */
+		private final AtomicInteger pending;
+		/**
+		 * Whether a file to be read did not exist
+		 */
+		private volatile boolean missing = false;
+
+		/**
+		 * @param promise
+		 *            the operation promise
+		 * @param transfers
+		 *            the number of file transfers
+		 */
+		private Operation(Promise<Boolean> promise, int transfers) {
+			this.promise = promise;
+			this.pending = new AtomicInteger(transfers);
+		}
+
+		/**
+		 * @param found
+		 *            whether the file transferred existed
+		 */
+		private void completed(boolean found) {
+			if (!found)
+				missing = true;
+			if (pending.decrementAndGet() == 0)
+				promise.trySuccess(!missing);
+		}
+
+		/**
+		 * @param cause
+		 *            the reason a file transfer failed
+		 */
+		private void failed(Throwable cause) {
+			promise.tryFailure(cause);
+		}
+	}
+
+	/**
+	 * Transfers data to or from a single file, issuing more writes or reads
+	 * until the buffer is filled or drained
+	 * 
+	 * @author <a href="http://www.rogiel.com">Rogiel</a>
+	 */
+	private class FileTransfer implements CompletionHandler<Integer, Void> {
+		/**
+		 * The file
+		 */
+		private final TorrentFile file;
+		/**
+		 * The buffer being written or read into
+		 */
+		private final ByteBuffer buffer;
+		/**
+		 * Whether data is written
+		 */
+		private final boolean write;
+		/**
+		 * The operation this transfer is part of
+		 */
+		private Operation operation;
+		/**
+		 * The position in the file of the next write or read
+		 */
+		private long position;
+		/**
+		 * The channel in use, referenced until the transfer completes
+		 */
+		private PooledChannel pooled;
+		/**
+		 * The allocation lock permit held until the write completes, if any
+		 */
+		private Semaphore lock;
+
+		/**
+		 * @param file
+		 *            the file
+		 * @param position
+		 *            the position in the file
+		 * @param buffer
+		 *            the buffer being written or read into
+		 * @param write
+		 *            whether data is written
+		 * @param operation
+		 *            the operation this transfer is part of
+		 */
+		private FileTransfer(TorrentFile file, long position,
+				ByteBuffer buffer, boolean write, Operation operation) {
+			this.file = file;
+			this.position = position;
+			this.buffer = buffer;
+			this.write = write;
+			this.operation = operation;
+		}
+
+		/**
+		 * Acquires the file channel and issues the first write or read
+		 */
+		private void start() {
+			try {
+				pooled = acquire(file, write);
+			} catch (IOException e) {
+				close();
+				operation.failed(e);
+				return;
+			}
+			if (pooled == null) {
+				close();
+				operation.completed(false);
+				return;
+			}
+			next();
+		}
+
+		/**
+		 * Issues the next write or read
+		 */
+		private void next() {
+			try {
+				if (write)
+					pooled.channel.write(buffer, position, null, this);
+				else
+					pooled.channel.read(buffer, position, null, this);
+			} catch (RuntimeException e) {
+				failed(e, null);
+			}
+		}
+
+		@Override
+		public void completed(Integer transferred, Void attachment) {
+			if (transferred < 0) {
+				// the file is shorter than expected
+				close();
+				operation.completed(false);
+				return;
+			}
+			position += transferred;
+			if (buffer.hasRemaining()) {
+				next();
+				return;
+			}
+			close();
+			operation.completed(true);
+		}
+
+		@Override
+		public void failed(Throwable cause, Void attachment) {
+			close();
+			operation.failed(cause);
+		}
+
+		/**
+		 * Releases the channel reference and the allocation lock permit held
+		 * by this transfer
+		 */
+		private void close() {
+			if (pooled != null)
+				pooled.release();
+			if (lock != null)
+				lock.release();
+		}
+	}
+
+	/**
+	 * A cached channel and the access it was opened with. The cache holds one
+	 * reference and each transfer using the channel another one; the channel
+	 * is closed once all of them are released.
+	 * 
+	 * @author <a href="http://www.rogiel.com">Rogiel</a>
+	 */
+	private static class PooledChannel {
+		/**
+		 * The open channel
+		 */
+		private final AsynchronousFileChannel channel;
+		/**
+		 * Whether the channel was opened with write access
+		 */
+		private final boolean writable;
+		/**
+		 * The number of references to the channel, starting with the one held
+		 * by the cache
+		 */
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		/**
+		 * @param channel
+		 *            the open channel
+		 * @param writable
+		 *            whether the channel was opened with write access
+		 */
+		private PooledChannel(AsynchronousFileChannel channel, boolean writable) {
+			this.channel = channel;
+			this.writable = writable;
+		}
+
+		/**
+		 * Adds a reference to the channel. Must be called while holding the
+		 * lock on {@link AsynchronousFileTorrentStorage#channels}, while the
+		 * entry is still cached.
+		 */
+		private void retain() {
+			references.incrementAndGet();
+		}
+
+		/**
+		 * Releases a reference to the channel, closing it if it was the last
+		 */
+		private void release() {
+			if (references.decrementAndGet() != 0)
+				return;
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
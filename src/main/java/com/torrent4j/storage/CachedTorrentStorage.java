@@ -0,0 +1,436 @@
+package com.torrent4j.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.torrent4j.model.Torrent;
+import com.torrent4j.model.TorrentPiece;
+import com.torrent4j.util.Hash;
+import com.torrent4j.util.Range;
+
+/**
+ * A {@link TorrentStorage} decorator that caches whole pieces in off-heap
+ * memory, so that a piece requested by several peers is read from the
+ * underlying storage only once. Reading the first block of a piece that is
+ * not cached reads the entire piece ahead, since the remaining blocks are
+ * very likely to be requested next.
+ * <p>
+ * The cache holds at most <code>capacity</code> bytes and evicts the least
+ * recently used pieces first. Writes go straight to the underlying storage
+ * and drop the pieces they overlap from the cache, including pieces being
+ * read ahead at the time, which are then not cached. Reads not contained in a
+ * single piece, or of pieces larger than the whole cache, are not cached.
+ * <p>
+ * Buffers returned by {@link #read(Torrent, Range, ByteBufAllocator)} are
+ * slices of the cached piece and keep it alive, even if evicted, until they
+ * are released.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class CachedTorrentStorage implements TorrentStorage {
+	/**
+	 * The storage holding the data
+	 */
+	private final TorrentStorage storage;
+	/**
+	 * The maximum number of bytes cached
+	 */
+	private final long capacity;
+	/**
+	 * The allocator for cached pieces
+	 */
+	private final ByteBufAllocator allocator;
+
+	/**
+	 * The cached pieces, in access order
+	 */
+	private final Map<TorrentPiece, ByteBuf> pieces = new LinkedHashMap<>(16,
+			0.75f, true);
+	/**
+	 * The number of bytes cached
+	 */
+	private long size = 0;
+	/**
+	 * The pieces being read ahead, so that a piece written while it is read
+	 * is not cached with stale data
+	 */
+	private final Map<TorrentPiece, ReadAhead> readAheads = new HashMap<>();
+
+	/**
+	 * The number of reads served from the cache
+	 */
+	private long hits = 0;
+	/**
+	 * The number of reads that missed the cache
+	 */
+	private long misses = 0;
+	/**
+	 * The number of pieces evicted to make room for others
+	 */
+	private long evictions = 0;
+
+	/**
+	 * Creates a new instance
+	 * 
+	 * @param storage
+	 *            the storage holding the data
+	 * @param capacity
+	 *            the maximum number of bytes cached
+	 * @param allocator
+	 *            the allocator for cached pieces, direct buffers are used
+	 */
+	public CachedTorrentStorage(TorrentStorage storage, long capacity,
+			ByteBufAllocator allocator) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be > 0");
+		this.storage = storage;
+		this.capacity = capacity;
+		this.allocator = allocator;
+	}
+
+	/**
+	 * Creates a new instance which caches pieces in pooled direct buffers
+	 * 
+	 * @param storage
+	 *            the storage holding the data
+	 * @param capacity
+	 *            the maximum number of bytes cached
+	 */
+	public CachedTorrentStorage(TorrentStorage storage, long capacity) {
+		this(storage, capacity, PooledByteBufAllocator.DEFAULT);
+	}
+
+	@Override
+	public boolean write(Torrent torrent, Range torrentRange, ByteBuffer data)
+			throws IOException {
+		try {
+			return storage.write(torrent, torrentRange, data);
+		} finally {
+			invalidate(torrent, torrentRange);
+		}
+	}
+
+	@Override
+	public boolean write(Torrent torrent, Range torrentRange, ByteBuf data)
+			throws IOException {
+		try {
+			return storage.write(torrent, torrentRange, data);
+		} finally {
+			invalidate(torrent, torrentRange);
+		}
+	}
+
+	@Override
+	public ByteBuffer read(Torrent torrent, Range torrentRange)
+			throws IOException {
+		final ByteBuf data = read(torrent, torrentRange, allocator);
+		if (data == null)
+			return null;
+		try {
+			final ByteBuffer buffer = ByteBuffer.allocate(data
+					.readableBytes());
+			data.getBytes(data.readerIndex(), buffer);
+			buffer.flip();
+			return buffer;
+		} finally {
+			data.release();
+		}
+	}
+
+	@Override
+	public ByteBuf read(Torrent torrent, Range torrentRange,
+			ByteBufAllocator allocator) throws IOException {
+		final TorrentPiece piece = getPiece(torrent, torrentRange);
+		if (piece == null)
+			return storage.read(torrent, torrentRange, allocator);
+
+		final int offset = (int) (torrentRange.getStart() - piece.getOffset());
+		final int length = (int) torrentRange.getLength();
+		final ReadAhead readAhead;
+		synchronized (this) {
+			final ByteBuf cached = pieces.get(piece);
+			if (cached != null) {
+				hits++;
+				return cached.slice(offset, length).retain();
+			}
+			misses++;
+			final ReadAhead existing = readAheads.get(piece);
+			if (existing != null) {
+				// the piece is already being read, its data is shared
+				existing.readers++;
+				return awaitReadAhead(existing, offset, length);
+			}
+			readAhead = new ReadAhead();
+			readAheads.put(piece, readAhead);
+		}
+
+		// the whole piece is read ahead, outside the lock
+		ByteBuf data = null;
+		ByteBuf slice = null;
+		IOException error = null;
+		try {
+			data = storage.read(torrent, piece.getTorrentRange(),
+					this.allocator);
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			// the piece is cached before the read-ahead is unregistered, so
+			// that no miss in between reads it again
+			synchronized (this) {
+				readAhead.complete(data, error);
+				notifyAll();
+				if (data != null) {
+					slice = data.slice(data.readerIndex() + offset, length)
+							.retain();
+					if (readAhead.stale || pieces.containsKey(piece)) {
+						data.release();
+					} else {
+						pieces.put(piece, data);
+						size += data.readableBytes();
+					}
+				}
+				if (readAheads.get(piece) == readAhead)
+					readAheads.remove(piece);
+				evict();
+			}
+		}
+		if (error != null)
+			throw error;
+		return slice;
+	}
+
+	/**
+	 * Waits for a piece being read ahead by another thread. Must be called
+	 * while holding the monitor, which is released while waiting.
+	 * 
+	 * @param readAhead
+	 *            the piece read-ahead
+	 * @param offset
+	 *            the offset of the requested range inside the piece
+	 * @param length
+	 *            the length of the requested range
+	 * @return a slice of the piece data, <code>null</code> if the piece is not
+	 *         stored
+	 * @throws IOException
+	 *             if the piece could not be read
+	 */
+	private ByteBuf awaitReadAhead(ReadAhead readAhead, int offset, int length)
+			throws IOException {
+		try {
+			while (!readAhead.done)
+				wait();
+		} catch (InterruptedException e) {
+			// the reference retained for this reader is given back
+			readAhead.readers--;
+			if (readAhead.done && readAhead.data != null)
+				readAhead.data.release();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		if (readAhead.error != null)
+			throw new IOException(readAhead.error);
+		if (readAhead.data == null)
+			return null;
+		// the reference retained for this reader becomes the slice's
+		return readAhead.data.slice(readAhead.data.readerIndex() + offset,
+				length);
+	}
+
+	@Override
+	public Hash checksum(TorrentPiece piece) throws IOException {
+		return storage.checksum(piece);
+	}
+
+	@Override
+	public void allocate(Torrent torrent) throws IOException {
+		storage.allocate(torrent);
+	}
+
+	@Override
+	public void release(Torrent torrent) {
+		synchronized (this) {
+			final Iterator<Entry<TorrentPiece, ByteBuf>> iterator = pieces
+					.entrySet().iterator();
+			while (iterator.hasNext()) {
+				final Entry<TorrentPiece, ByteBuf> entry = iterator.next();
+				if (entry.getKey().getTorrent() != torrent)
+					continue;
+				size -= entry.getValue().readableBytes();
+				entry.getValue().release();
+				iterator.remove();
+			}
+		}
+		storage.release(torrent);
+	}
+
+	/**
+	 * Drops all cached pieces overlapping the range
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param range
+	 *            the range being written
+	 */
+	private synchronized void invalidate(Torrent torrent, Range range) {
+		if (pieces.isEmpty() && readAheads.isEmpty())
+			return;
+		for (final TorrentPiece piece : torrent.getPieces(range)) {
+			// later reads must not share data read before the write
+			final ReadAhead readAhead = readAheads.remove(piece);
+			if (readAhead != null)
+				readAhead.stale = true;
+			final ByteBuf cached = pieces.remove(piece);
+			if (cached == null)
+				continue;
+			size -= cached.readableBytes();
+			cached.release();
+		}
+	}
+
+	/**
+	 * Evicts the least recently used pieces until the cache fits its capacity
+	 */
+	private void evict() {
+		final Iterator<ByteBuf> iterator = pieces.values().iterator();
+		while (size > capacity && iterator.hasNext()) {
+			final ByteBuf cached = iterator.next();
+			size -= cached.readableBytes();
+			cached.release();
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * @param torrent
+	 *            the torrent
+	 * @param range
+	 *            the range
+	 * @return the piece containing the whole range, if it can be cached
+	 */
+	private TorrentPiece getPiece(Torrent torrent, Range range) {
+		final List<TorrentPiece> pieces = torrent.getPieces(range);
+		if (pieces.size() != 1)
+			return null;
+		final TorrentPiece piece = pieces.get(0);
+		if (piece.getLength() > capacity
+				|| !piece.getTorrentRange().contains(range))
+			return null;
+		return piece;
+	}
+
+	/**
+	 * @return the storage holding the data
+	 */
+	public TorrentStorage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * @return the maximum number of bytes cached
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of bytes cached
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the number of pieces cached
+	 */
+	public synchronized int getPieceCount() {
+		return pieces.size();
+	}
+
+	/**
+	 * @return the number of reads served from the cache
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of reads that missed the cache
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the fraction of cacheable reads served from the cache
+	 */
+	public synchronized double getHitRate() {
+		if (hits + misses == 0)
+			return 0;
+		return (double) hits / (hits + misses);
+	}
+
+	/**
+	 * @return the number of pieces evicted to make room for others
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * A piece being read ahead, whose data is shared with the readers that
+	 * miss the same piece meanwhile. All fields are guarded by the storage
+	 * monitor.
+	 * 
+	 * @author <a href="http://www.rogiel.com">Rogiel</a>
+	 */
+	private static class ReadAhead {
+		/**
+		 * The number of other threads waiting for the piece data
+		 */
+		private int readers;
+		/**
+		 * Whether the piece was written while being read
+		 */
+		private boolean stale;
+		/**
+		 * Whether the read has completed
+		 */
+		private boolean done;
+		/**
+		 * The piece data, <code>null</code> if not stored or the read failed
+		 */
+		private ByteBuf data;
+		/**
+		 * The reason the read failed, if it did
+		 */
+		private IOException error;
+
+		/**
+		 * Completes the read, retaining the data once for each waiting reader
+		 * 
+		 * @param data
+		 *            the piece data, may be <code>null</code>
+		 * @param error
+		 *            the reason the read failed, may be <code>null</code>
+		 */
+		private void complete(ByteBuf data, IOException error) {
+			this.data = data;
+			this.error = error;
+			this.done = true;
+			if (data != null && readers > 0)
+				data.retain(readers);
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package com.torrent4j.storage;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.torrent4j.model.Torrent;
+import com.torrent4j.model.TorrentFile;
+import com.torrent4j.model.TorrentPiece;
+import com.torrent4j.model.TorrentPieceBlock;
+import com.torrent4j.util.bencoding.BDecoder;
+import com.torrent4j.util.bencoding.BEncoder;
+import com.torrent4j.util.bencoding.BList;
+import com.torrent4j.util.bencoding.BMap;
+
+/**
+ * Persists the download state of torrents stored on a
+ * {@link FileAwareTorrentStorage}, so that it can be restored without hashing
+ * all the torrent data again. Each torrent state is stored into a bencoded
+ * file named after the torrent hash, containing:
+ * <ul>
+ * <li>the completed pieces;</li>
+ * <li>the downloaded blocks of incomplete pieces;</li>
+ * <li>the size and modification time of each file.</li>
+ * </ul>
+ * When loading, the state of pieces stored on files whose size or
+ * modification time changed since the state was saved is discarded and those
+ * pieces must be checked again.
+ * <p>
+ * Files are written to a temporary file first and then atomically moved over
+ * the previous state, so a crash while saving never leaves a corrupted file
+ * behind.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class FastResumeStore {
+	/**
+	 * The resume file format version
+	 */
+	private static final int VERSION = 1;
+	/**
+	 * The resume file extension
+	 */
+	private static final String EXTENSION = ".resume";
+
+	/**
+	 * The directory in which resume files are stored
+	 */
+	private final Path directory;
+
+	/**
+	 * Creates a new instance
+	 * 
+	 * @param directory
+	 *            the directory in which resume files are stored
+	 */
+	public FastResumeStore(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Saves the current torrent state
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param storage
+	 *            the storage in which the torrent data is stored
+	 * @throws IOException
+	 *             if any error occur while writing the resume file
+	 */
+	public void save(Torrent torrent, FileAwareTorrentStorage storage)
+			throws IOException {
+		final Map<String, Object> resume = new HashMap<>();
+		resume.put("version", VERSION);
+		resume.put("info-hash", torrent.getHash().getHash());
+
+		final BitSet pieces = torrent.getCompletedPieces().getSnapshot();
+		resume.put("pieces", pieces.toByteArray());
+
+		final List<Object> blocks = new ArrayList<>();
+		for (final TorrentPiece piece : torrent.getPieces()) {
+			if (pieces.get(piece.getIndex()))
+				continue;
+			final BitSet downloaded = new BitSet();
+			int i = 0;
+			for (final TorrentPieceBlock block : piece.getBlocks()) {
+				if (block.isDownloaded())
+					downloaded.set(i);
+				i++;
+			}
+			if (downloaded.isEmpty())
+				continue;
+			final Map<String, Object> entry = new HashMap<>();
+			entry.put("piece", piece.getIndex());
+			entry.put("blocks", downloaded.toByteArray());
+			blocks.add(entry);
+		}
+		resume.put("partial", blocks);
+
+		final List<Object> files = new ArrayList<>();
+		for (final TorrentFile file : torrent.getFiles()) {
+			final Map<String, Object> entry = new HashMap<>();
+			final Path path = storage.getPath(file);
+			if (Files.exists(path)) {
+				entry.put("length", Files.size(path));
+				entry.put("mtime", Files.getLastModifiedTime(path).toMillis());
+			} else {
+				entry.put("length", -1L);
+				entry.put("mtime", -1L);
+			}
+			files.add(entry);
+		}
+		resume.put("files", files);
+
+		Files.createDirectories(directory);
+		final Path target = getResumeFile(torrent);
+		final Path temporary = target.resolveSibling(target.getFileName()
+				+ ".tmp");
+		try (final OutputStream out = Files.newOutputStream(temporary)) {
+			out.write(BEncoder.bencode(resume));
+		}
+		try {
+			Files.move(temporary, target, ATOMIC_MOVE, REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temporary, target, REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Restores a previously saved torrent state. Completed pieces and
+	 * downloaded blocks stored on files that have not changed since the state
+	 * was saved are restored. Pieces stored on files that changed are returned
+	 * and should be checked again.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param storage
+	 *            the storage in which the torrent data is stored
+	 * @return the pieces that must be checked again or <code>null</code> if
+	 *         there is no saved state for the torrent
+	 * @throws IOException
+	 *             if any error occur while reading the resume file
+	 */
+	public List<TorrentPiece> load(Torrent torrent,
+			FileAwareTorrentStorage storage) throws IOException {
+		final Path file = getResumeFile(torrent);
+		if (!Files.exists(file))
+			return null;
+
+		final BMap resume;
+		try (final BDecoder in = new BDecoder(Files.newInputStream(file))) {
+			resume = (BMap) in.readElement();
+		}
+		if (!Integer.valueOf(VERSION).equals(resume.getInteger("version")))
+			return null;
+		if (!Arrays.equals((byte[]) resume.get("info-hash"), torrent
+				.getHash().getHash()))
+			return null;
+		final BList files = resume.getList("files");
+		if (files.size() != torrent.getFiles().size())
+			return null;
+
+		// determine which files are untouched since the state was saved
+		final Set<TorrentPiece> changed = new LinkedHashSet<>();
+		final Set<TorrentPiece> missing = new LinkedHashSet<>();
+		for (int i = 0; i < files.size(); i++) {
+			final TorrentFile torrentFile = torrent.getFiles().get(i);
+			final BMap entry = files.getMap(i);
+			final Path path = storage.getPath(torrentFile);
+			if (!Files.exists(path)) {
+				missing.addAll(torrentFile.getPieces());
+			} else if (Files.size(path) != entry.getLong("length")
+					|| Files.getLastModifiedTime(path).toMillis() != entry
+							.getLong("mtime")) {
+				changed.addAll(torrentFile.getPieces());
+			}
+		}
+
+		final BitSet pieces = BitSet.valueOf((byte[]) resume.get("pieces"));
+		for (int i = pieces.nextSetBit(0); i >= 0; i = pieces
+				.nextSetBit(i + 1)) {
+			final TorrentPiece piece = torrent.getPiece(i);
+			if (piece == null || changed.contains(piece)
+					|| missing.contains(piece))
+				continue;
+			torrent.getCompletedPieces().addPiece(piece);
+		}
+
+		for (final Object object : resume.getList("partial")) {
+			final BMap entry = (BMap) object;
+			final TorrentPiece piece = torrent.getPiece(entry
+					.getInteger("piece"));
+			if (piece == null || changed.contains(piece)
+					|| missing.contains(piece))
+				continue;
+			final BitSet blocks = BitSet.valueOf((byte[]) entry.get("blocks"));
+			final List<TorrentPieceBlock> pieceBlocks = piece.getBlocks();
+			for (int i = blocks.nextSetBit(0); i >= 0
+					&& i < pieceBlocks.size(); i = blocks.nextSetBit(i + 1)) {
+				pieceBlocks.get(i).setDownloaded(true);
+			}
+		}
+
+		changed.removeAll(missing);
+		return new ArrayList<>(changed);
+	}
+
+	/**
+	 * Deletes the saved torrent state, if any
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @throws IOException
+	 *             if any error occur while deleting the resume file
+	 */
+	public void delete(Torrent torrent) throws IOException {
+		Files.deleteIfExists(getResumeFile(torrent));
+	}
+
+	/**
+	 * @param torrent
+	 *            the torrent
+	 * @return the file in which the torrent state is stored
+	 */
+	public Path getResumeFile(Torrent torrent) {
+		return directory.resolve(torrent.getHash().getString() + EXTENSION);
+	}
+
+	/**
+	 * @return the directory in which resume files are stored
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+}
@@ -1,8 +1,23 @@
 package com.torrent4j.storage;
 
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
 
 import com.torrent4j.model.Torrent;
 import com.torrent4j.model.TorrentFile;
@@ -16,55 +31,415 @@ import com.torrent4j.util.Range;
  * requested range and for each file that needs to be written or redden, a call
  * to {@link #write(TorrentFile, Range, ByteBuffer)} and
  * {@link #read(TorrentFile, Range, ByteBuffer)} is made. On all cases, the same
- * buffer is sent for several calls.
+ * buffer is sent for several calls. The first file is located with
+ * {@link Torrent#getFileIndex(long)} and the following ones are iterated in
+ * place, without building an intermediary list.
  * <p>
  * If any error occur while reading any of the files, the whole reading process
  * fails.
+ * <p>
+ * The space for each torrent is allocated according to its
+ * {@link AllocationMode} when {@link #allocate(Torrent)} is called, so that
+ * files are not grown at random offsets as pieces arrive. Allocation runs
+ * concurrently with writes: a {@link AllocationMode#FULL} allocation rewrites
+ * the file one chunk at a time, holding a per-file lock which writes to the
+ * same file wait for.
  * 
  * @author <a href="http://www.rogiel.com">Rogiel</a>
  * 
  */
 public abstract class FileAwareTorrentStorage extends AbstractTorrentStorage
 		implements TorrentStorage {
+	/**
+	 * The amount of data allocated at once in {@link AllocationMode#FULL}
+	 */
+	private static final int ALLOCATION_CHUNK = 1024 * 1024;
+	/**
+	 * The zeros written while allocating
+	 */
+	private static final ByteBuffer ZEROS = ByteBuffer
+			.allocateDirect(ALLOCATION_CHUNK);
+	/**
+	 * The permits of each allocation lock. Writes take one, allocation takes
+	 * them all.
+	 */
+	private static final int ALLOCATION_PERMITS = Integer.MAX_VALUE;
+
+	/**
+	 * The allocation mode of torrents without one of their own
+	 */
+	private volatile AllocationMode defaultAllocationMode = AllocationMode.SPARSE;
+	/**
+	 * The allocation mode of each torrent
+	 */
+	private final ConcurrentMap<Torrent, AllocationMode> allocationModes = new ConcurrentHashMap<>();
+	/**
+	 * The locks of files in {@link AllocationMode#FULL}. Writes hold one
+	 * permit, so that they never run while the allocation fills a chunk
+	 * holding all of them. Unlike a read-write lock, permits can be released
+	 * by any thread, such as the one completing an asynchronous write.
+	 */
+	private final ConcurrentMap<TorrentFile, Semaphore> allocationLocks = new ConcurrentHashMap<>();
+
 	@Override
 	public final boolean write(Torrent torrent, Range dataRange, ByteBuffer data)
 			throws IOException {
-		final List<TorrentFile> files = torrent.getFiles(dataRange);
-		for (final TorrentFile file : files) {
-			final Range rangeOnFile = file.getTorrentRange().intersection(
-					dataRange);
-			final Range range = file.getFileRange().intersection(
-					Range.getRangeByLength(
-							rangeOnFile.getStart() - file.getOffset(),
-							rangeOnFile.getLength()));
-			data.limit((int) (data.position() + range.getLength()));
-			if (!this.write(file, range, data))
+		final List<TorrentFile> files = torrent.getFiles();
+		final long end = dataRange.getStart() + dataRange.getLength();
+		long position = dataRange.getStart();
+		int index = torrent.getFileIndex(position);
+		while (index >= 0 && index < files.size() && position < end) {
+			final TorrentFile file = files.get(index++);
+			final long length = Math.min(end,
+					file.getOffset() + file.getLength())
+					- position;
+			if (length <= 0)
+				continue;
+			data.limit((int) (data.position() + length));
+			final Semaphore lock = acquireWrite(torrent, file);
+			try {
+				if (!this.write(file, Range.getRangeByLength(
+						position - file.getOffset(), length), data))
+					return false;
+			} finally {
+				if (lock != null)
+					lock.release();
+			}
+			position += length;
+		}
+		return true;
+	}
+
+	/**
+	 * Allocates the torrent files according to the torrent
+	 * {@link AllocationMode}. Files are allocated through their own channels,
+	 * while the torrent is in use.
+	 */
+	@Override
+	public void allocate(Torrent torrent) throws IOException {
+		final AllocationMode mode = getAllocationMode(torrent);
+		for (final TorrentFile file : torrent.getFiles()) {
+			if (mode == AllocationMode.SPARSE)
+				extend(file);
+			else
+				fill(file);
+		}
+	}
+
+	/**
+	 * Sets the size of the file to its full length, without writing data.
+	 * Files are never longer than their length, so data written concurrently
+	 * is never truncated.
+	 * 
+	 * @param file
+	 *            the torrent file
+	 * @throws IOException
+	 *             if any error occur while extending the file
+	 */
+	private void extend(TorrentFile file) throws IOException {
+		try (final RandomAccessFile output = new RandomAccessFile(getPath(
+				file).toFile(), "rw")) {
+			if (output.length() < file.getLength())
+				output.setLength(file.getLength());
+		}
+	}
+
+	/**
+	 * Fills the file with zeros, from start to end, one chunk at a time. Files
+	 * already at their full length are left untouched. Otherwise, chunks past
+	 * the end of the file are written with zeros and chunks already in the
+	 * file, because pieces after them have been written, are only written if
+	 * they read as zeros, which fills their holes. Existing data is never
+	 * written again.
+	 * 
+	 * @param file
+	 *            the torrent file
+	 * @throws IOException
+	 *             if any error occur while writing
+	 */
+	private void fill(TorrentFile file) throws IOException {
+		final Path path = getPath(file);
+		if (Files.exists(path) && Files.size(path) >= file.getLength())
+			return;
+		final Semaphore lock = getAllocationLock(file);
+		final ByteBuffer chunk = ByteBuffer.allocateDirect((int) Math.min(
+				ALLOCATION_CHUNK, Math.max(file.getLength(), 1)));
+		try (final FileChannel channel = FileChannel.open(path, CREATE, READ,
+				WRITE)) {
+			for (long position = 0; position < file.getLength(); position += chunk
+					.capacity()) {
+				final long end = Math.min(position + chunk.capacity(),
+						file.getLength());
+				lock.acquireUninterruptibly(ALLOCATION_PERMITS);
+				try {
+					// existing data is kept, only zeros and holes are filled
+					final long size = channel.size();
+					long start = position;
+					if (position < size) {
+						chunk.clear();
+						chunk.limit((int) (Math.min(end, size) - position));
+						int read = 0;
+						while (chunk.hasRemaining() && read >= 0) {
+							read = channel.read(chunk, position
+									+ chunk.position());
+						}
+						chunk.flip();
+						if (!isZero(chunk))
+							start = size;
+					}
+					while (start < end) {
+						final ByteBuffer zeros = ZEROS.duplicate();
+						zeros.limit((int) (end - start));
+						start += channel.write(zeros, start);
+					}
+				} finally {
+					lock.release(ALLOCATION_PERMITS);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param data
+	 *            the data, its position is not modified
+	 * @return <code>true</code> if all remaining bytes are zero
+	 */
+	private static boolean isZero(ByteBuffer data) {
+		for (int i = data.position(); i < data.limit(); i++) {
+			if (data.get(i) != 0)
 				return false;
 		}
 		return true;
 	}
 
+	/**
+	 * Waits until the file can be written without racing its allocation.
+	 * Implementations writing to files other than through
+	 * {@link #write(TorrentFile, Range, ByteBuffer)}, such as asynchronously,
+	 * must hold the returned permit until the write completes.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param file
+	 *            the torrent file
+	 * @return the lock whose permit must be released once the write
+	 *         completes, <code>null</code> if the torrent is not in
+	 *         {@link AllocationMode#FULL}
+	 */
+	protected Semaphore acquireWrite(Torrent torrent, TorrentFile file) {
+		if (getAllocationMode(torrent) != AllocationMode.FULL)
+			return null;
+		final Semaphore lock = getAllocationLock(file);
+		lock.acquireUninterruptibly();
+		return lock;
+	}
+
+	/**
+	 * @param file
+	 *            the torrent file
+	 * @return the lock guarding writes to the file while it is allocated
+	 */
+	private Semaphore getAllocationLock(TorrentFile file) {
+		Semaphore lock = allocationLocks.get(file);
+		if (lock == null) {
+			final Semaphore created = new Semaphore(ALLOCATION_PERMITS, true);
+			lock = allocationLocks.putIfAbsent(file, created);
+			if (lock == null)
+				lock = created;
+		}
+		return lock;
+	}
+
+	/**
+	 * @param torrent
+	 *            the torrent
+	 * @return the torrent allocation mode
+	 */
+	public AllocationMode getAllocationMode(Torrent torrent) {
+		final AllocationMode mode = allocationModes.get(torrent);
+		return mode == null ? defaultAllocationMode : mode;
+	}
+
+	/**
+	 * Sets the allocation mode of a torrent. This must be done before the
+	 * torrent is registered on its controller and is forgotten once the
+	 * torrent is released.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param mode
+	 *            the allocation mode
+	 */
+	public void setAllocationMode(Torrent torrent, AllocationMode mode) {
+		allocationModes.put(torrent, mode);
+	}
+
+	/**
+	 * @return the allocation mode of torrents without one of their own
+	 */
+	public AllocationMode getDefaultAllocationMode() {
+		return defaultAllocationMode;
+	}
+
+	/**
+	 * Sets the allocation mode of torrents without one of their own. This must
+	 * be done before torrents are registered on their controllers.
+	 * 
+	 * @param defaultAllocationMode
+	 *            the allocation mode of torrents without one of their own
+	 */
+	public void setDefaultAllocationMode(AllocationMode defaultAllocationMode) {
+		this.defaultAllocationMode = defaultAllocationMode;
+	}
+
+	/**
+	 * Forgets the torrent allocation mode. Implementations overriding this
+	 * method must call it.
+	 */
 	@Override
-	public final ByteBuffer read(Torrent torrent, Range dataRange)
+	public void release(Torrent torrent) {
+		allocationModes.remove(torrent);
+		for (final TorrentFile file : torrent.getFiles()) {
+			allocationLocks.remove(file);
+		}
+	}
+
+	/**
+	 * Reads the requested range into a newly allocated heap buffer.
+	 * Implementations capable of serving data without copying it (such as
+	 * {@link MappedTorrentStorage}) can override this method and fall back to
+	 * this implementation when they can't.
+	 */
+	@Override
+	public ByteBuffer read(Torrent torrent, Range dataRange)
 			throws IOException {
-		final List<TorrentFile> files = torrent.getFiles(dataRange);
 		final ByteBuffer data = ByteBuffer
 				.allocate((int) dataRange.getLength());
-		for (final TorrentFile file : files) {
-			final Range rangeOnFile = file.getTorrentRange().intersection(
-					dataRange);
-			final Range range = file.getFileRange().intersection(
-					Range.getRangeByLength(
-							rangeOnFile.getStart() - file.getOffset(),
-							rangeOnFile.getLength()));
-			data.limit((int) (data.position() + range.getLength()));
-			if (!this.read(file, range, data))
-				return null;
-		}
+		if (!read(torrent, dataRange, data))
+			return null;
 		data.flip();
 		return data;
 	}
 
+	/**
+	 * Reads the requested range straight into a buffer from the allocator,
+	 * which is a pooled direct buffer with the default configuration.
+	 */
+	@Override
+	public ByteBuf read(Torrent torrent, Range dataRange,
+			ByteBufAllocator allocator) throws IOException {
+		final int length = (int) dataRange.getLength();
+		final ByteBuf buffer = allocator.directBuffer(length);
+		boolean read = false;
+		try {
+			read = read(torrent, dataRange, buffer.nioBuffer(0, length));
+		} finally {
+			if (!read)
+				buffer.release();
+		}
+		if (!read)
+			return null;
+		return buffer.writerIndex(length);
+	}
+
+	/**
+	 * Reads the requested range into <code>data</code>, starting at its
+	 * current position
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param dataRange
+	 *            the range in which the data should be read from
+	 * @param data
+	 *            the buffer to read into
+	 * @return <code>true</code> if read was successful
+	 * @throws IOException
+	 *             if any exception occur while reading data
+	 */
+	private boolean read(Torrent torrent, Range dataRange, ByteBuffer data)
+			throws IOException {
+		final List<TorrentFile> files = torrent.getFiles();
+		final long end = dataRange.getStart() + dataRange.getLength();
+		long position = dataRange.getStart();
+		int index = torrent.getFileIndex(position);
+		while (index >= 0 && index < files.size() && position < end) {
+			final TorrentFile file = files.get(index++);
+			final long length = Math.min(end,
+					file.getOffset() + file.getLength())
+					- position;
+			if (length <= 0)
+				continue;
+			data.limit((int) (data.position() + length));
+			if (!this.read(file, Range.getRangeByLength(
+					position - file.getOffset(), length), data))
+				return false;
+			position += length;
+		}
+		return true;
+	}
+
+	/**
+	 * Locates the requested range on disk so that it can be transferred
+	 * directly from the file, without reading it into memory. This is only
+	 * possible if the whole range is stored on a single, existing file.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param dataRange
+	 *            the range in which the data should be read from
+	 * @return the {@link TorrentStorageRegion} or <code>null</code> if the
+	 *         range spans several files or is not yet stored on disk
+	 * @throws IOException
+	 *             if any error occur while opening the file
+	 */
+	public TorrentStorageRegion region(Torrent torrent, Range dataRange)
+			throws IOException {
+		final TorrentFile file = torrent.getFile(dataRange.getStart());
+		if (file == null
+				|| dataRange.getStart() + dataRange.getLength() > file
+						.getOffset() + file.getLength())
+			return null;
+		return region(file, dataRange.getStart() - file.getOffset(),
+				dataRange.getLength());
+	}
+
+	/**
+	 * Locates a range stored on a single file. The default implementation
+	 * opens a new channel, owned by the returned region.
+	 * 
+	 * @param file
+	 *            the torrent file
+	 * @param position
+	 *            the position of the data inside the file
+	 * @param length
+	 *            the data length
+	 * @return the {@link TorrentStorageRegion} or <code>null</code> if the
+	 *         range is not yet stored on disk
+	 * @throws IOException
+	 *             if any error occur while opening the file
+	 */
+	protected TorrentStorageRegion region(TorrentFile file, long position,
+			long length) throws IOException {
+		final FileChannel channel;
+		try {
+			channel = FileChannel.open(getPath(file), READ);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		if (channel.size() < position + length) {
+			channel.close();
+			return null;
+		}
+		return new TorrentStorageRegion(channel, position, length);
+	}
+
+	/**
+	 * @param file
+	 *            the torrent file
+	 * @return the path in which the <code>file</code> is stored
+	 */
+	public abstract Path getPath(TorrentFile file);
+
 	/**
 	 * Writes <code>data</code> into the given <code>file</code> at the
 	 * requested <code>range</code>.
@@ -46,6 +46,13 @@ public class InMemoryTorrentStorage extends AbstractTorrentStorage implements
 		}
 	}
 
+	@Override
+	public void release(Torrent torrent) {
+		synchronized (buffers) {
+			buffers.remove(torrent);
+		}
+	}
+
 	/**
 	 * Tries to return an existing buffer for the <code>torrent</code>. If none
 	 * is found, creates a new buffer and returns it.
@@ -56,11 +63,14 @@ public class InMemoryTorrentStorage extends AbstractTorrentStorage implements
 	 *         torrent data into it
 	 */
 	private ByteBuffer getBuffer(Torrent torrent) {
-		ByteBuffer buffer = buffers.get(torrent);
-		if (buffer == null) {
-			buffer = ByteBuffer.allocateDirect((int) torrent.getTorrentSize());
-			buffers.put(torrent, buffer);
+		synchronized (buffers) {
+			ByteBuffer buffer = buffers.get(torrent);
+			if (buffer == null) {
+				buffer = ByteBuffer.allocateDirect((int) torrent
+						.getTorrentSize());
+				buffers.put(torrent, buffer);
+			}
+			return buffer;
 		}
-		return buffer;
 	}
 }
@@ -0,0 +1,337 @@
+package com.torrent4j.storage;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.torrent4j.model.Torrent;
+import com.torrent4j.model.TorrentFile;
+import com.torrent4j.util.Range;
+
+/**
+ * This {@link TorrentStorage} instance implements
+ * {@link FileAwareTorrentStorage} by memory mapping torrent files. Each file is
+ * mapped in fixed size windows (so that files larger than 2 GiB can be mapped)
+ * and windows are kept in a LRU cache bounded by a total mapped bytes budget.
+ * <p>
+ * Whenever the requested range lies entirely inside a single window of a
+ * single file, {@link #read(Torrent, Range)} returns a read-only slice of the
+ * mapping instead of copying data into a newly allocated buffer. Such slices
+ * can be wrapped by network buffers without any copies. Ranges spanning more
+ * than one file or window fall back to the copying implementation.
+ * <p>
+ * Windows are mapped read-only, and never past the end of the file, until
+ * they are first written. Evicted windows and windows of a torrent
+ * {@link #release(Torrent) released} from the storage are only dereferenced
+ * and unmapped by the garbage collector, since checksums or slices of them
+ * may still be in use.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class MappedTorrentStorage extends FileAwareTorrentStorage {
+	/**
+	 * The default window size: 64 MiB
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+	/**
+	 * The default mapped bytes budget: 1 GiB
+	 */
+	public static final long DEFAULT_MAXIMUM_MAPPED_BYTES = 1024L * 1024 * 1024;
+
+	/**
+	 * The place where data files are stored
+	 */
+	private final Path root;
+	/**
+	 * The size of each mapped window
+	 */
+	private final int windowSize;
+	/**
+	 * The maximum amount of bytes mapped at any time
+	 */
+	private final long maximumMappedBytes;
+
+	/**
+	 * The mapped windows, in access order
+	 */
+	private final Map<WindowKey, MappedByteBuffer> windows = new LinkedHashMap<>(
+			16, 0.75f, true);
+	/**
+	 * The amount of bytes currently mapped
+	 */
+	private long mappedBytes = 0;
+
+	/**
+	 * Creates a new instance
+	 * 
+	 * @param root
+	 *            the place where torrent data is stored
+	 * @param windowSize
+	 *            the size of each mapped window
+	 * @param maximumMappedBytes
+	 *            the maximum amount of bytes mapped at any time
+	 */
+	public MappedTorrentStorage(Path root, int windowSize,
+			long maximumMappedBytes) {
+		if (windowSize <= 0)
+			throw new IllegalArgumentException("windowSize must be > 0");
+		if (maximumMappedBytes < windowSize)
+			throw new IllegalArgumentException(
+					"maximumMappedBytes must be >= windowSize");
+		this.root = root;
+		this.windowSize = windowSize;
+		this.maximumMappedBytes = maximumMappedBytes;
+	}
+
+	/**
+	 * Creates a new instance with {@link #DEFAULT_WINDOW_SIZE} windows and
+	 * {@link #DEFAULT_MAXIMUM_MAPPED_BYTES} budget
+	 * 
+	 * @param root
+	 *            the place where torrent data is stored
+	 */
+	public MappedTorrentStorage(Path root) {
+		this(root, DEFAULT_WINDOW_SIZE, DEFAULT_MAXIMUM_MAPPED_BYTES);
+	}
+
+	/**
+	 * Creates a new instance which stores data into the current working
+	 * directory
+	 */
+	public MappedTorrentStorage() {
+		this(Paths.get(".").toAbsolutePath());
+	}
+
+	@Override
+	public ByteBuffer read(Torrent torrent, Range dataRange) throws IOException {
+		final TorrentFile file = torrent.getFile(dataRange.getStart());
+		if (file == null
+				|| dataRange.getStart() + dataRange.getLength() > file
+						.getOffset() + file.getLength())
+			return super.read(torrent, dataRange);
+		final long start = dataRange.getStart() - file.getOffset();
+		final long window = start / windowSize;
+		if ((start + dataRange.getLength() - 1) / windowSize != window)
+			return super.read(torrent, dataRange);
+
+		final ByteBuffer mapping = getWindow(file, window, false);
+		if (mapping == null)
+			return null;
+		final int position = (int) (start - window * windowSize);
+		if (position + dataRange.getLength() > mapping.capacity())
+			return null;
+		final ByteBuffer slice = mapping.duplicate();
+		slice.limit(position + (int) dataRange.getLength()).position(position);
+		return slice.slice().asReadOnlyBuffer();
+	}
+
+	@Override
+	public Path getPath(TorrentFile file) {
+		return root.resolve(file.getFileName());
+	}
+
+	@Override
+	protected boolean write(TorrentFile file, Range range, ByteBuffer data)
+			throws IOException {
+		long position = range.getStart();
+		while (data.hasRemaining()) {
+			final long window = position / windowSize;
+			final ByteBuffer mapped = getWindow(file, window, true);
+			if (mapped == null)
+				return false;
+			final ByteBuffer mapping = mapped.duplicate();
+			mapping.position((int) (position - window * windowSize));
+
+			final ByteBuffer chunk = data.duplicate();
+			chunk.limit(chunk.position()
+					+ Math.min(chunk.remaining(), mapping.remaining()));
+			mapping.put(chunk);
+			position += chunk.position() - data.position();
+			data.position(chunk.position());
+		}
+		return true;
+	}
+
+	@Override
+	protected boolean read(TorrentFile file, Range range, ByteBuffer data)
+			throws IOException {
+		long position = range.getStart();
+		while (data.hasRemaining()) {
+			final long window = position / windowSize;
+			final ByteBuffer mapping = getWindow(file, window, false);
+			final int offset = (int) (position - window * windowSize);
+			if (mapping == null || offset >= mapping.capacity())
+				return false;
+			final ByteBuffer chunk = mapping.duplicate();
+			chunk.position(offset);
+			chunk.limit(chunk.position()
+					+ Math.min(chunk.remaining(), data.remaining()));
+			position += chunk.remaining();
+			data.put(chunk);
+		}
+		return true;
+	}
+
+	@Override
+	public void release(Torrent torrent) {
+		synchronized (windows) {
+			final Iterator<Entry<WindowKey, MappedByteBuffer>> iterator = windows
+					.entrySet().iterator();
+			while (iterator.hasNext()) {
+				final Entry<WindowKey, MappedByteBuffer> entry = iterator
+						.next();
+				if (entry.getKey().file.getTorrent() != torrent)
+					continue;
+				mappedBytes -= entry.getValue().capacity();
+				iterator.remove();
+			}
+		}
+		super.release(torrent);
+	}
+
+	/**
+	 * @return the size of each mapped window
+	 */
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * @return the maximum amount of bytes mapped at any time
+	 */
+	public long getMaximumMappedBytes() {
+		return maximumMappedBytes;
+	}
+
+	/**
+	 * @return the amount of bytes currently mapped
+	 */
+	public long getMappedBytes() {
+		synchronized (windows) {
+			return mappedBytes;
+		}
+	}
+
+	/**
+	 * Returns the mapped window <code>window</code> of <code>file</code>,
+	 * mapping it if necessary. Least recently used windows are evicted until
+	 * the new window fits in the budget.
+	 * <p>
+	 * Windows mapped for reading are read-only and end at the end of the file,
+	 * so that reading never grows it. A read-only window is replaced by a
+	 * writable one on the first write.
+	 * 
+	 * @param file
+	 *            the torrent file
+	 * @param window
+	 *            the window index
+	 * @param write
+	 *            whether the window is used for writing, in which case the
+	 *            file is created if it does not exists
+	 * @return the mapped window or <code>null</code> if the file does not
+	 *         exists or ends before the window and <code>write</code> is
+	 *         <code>false</code>
+	 * @throws IOException
+	 *             if any error is thrown by NIO.2
+	 */
+	private MappedByteBuffer getWindow(TorrentFile file, long window,
+			boolean write) throws IOException {
+		final WindowKey key = new WindowKey(file, window);
+		synchronized (windows) {
+			MappedByteBuffer mapping = windows.get(key);
+			if (mapping != null && (!write || !mapping.isReadOnly()))
+				return mapping;
+
+			final long start = window * windowSize;
+			long length = Math.min(windowSize, file.getLength() - start);
+			final Path filePath = getPath(file);
+			// files of multi-file torrents might be in subdirectories
+			if (write && filePath.getParent() != null)
+				Files.createDirectories(filePath.getParent());
+			try (final FileChannel channel = write ? FileChannel.open(
+					filePath, CREATE, READ, WRITE) : FileChannel.open(
+					filePath, READ)) {
+				if (write) {
+					mapping = channel.map(MapMode.READ_WRITE, start, length);
+				} else {
+					length = Math.min(length, channel.size() - start);
+					if (length <= 0)
+						return null;
+					mapping = channel.map(MapMode.READ_ONLY, start, length);
+				}
+			} catch (NoSuchFileException e) {
+				return null;
+			}
+
+			final MappedByteBuffer replaced = windows.remove(key);
+			if (replaced != null)
+				mappedBytes -= replaced.capacity();
+			final Iterator<MappedByteBuffer> iterator = windows.values()
+					.iterator();
+			while (mappedBytes + length > maximumMappedBytes
+					&& iterator.hasNext()) {
+				mappedBytes -= iterator.next().capacity();
+				iterator.remove();
+			}
+			windows.put(key, mapping);
+			mappedBytes += length;
+			return mapping;
+		}
+	}
+
+	/**
+	 * Identifies a window of a file
+	 * 
+	 * @author <a href="http://www.rogiel.com">Rogiel</a>
+	 */
+	private static class WindowKey {
+		/**
+		 * The mapped file
+		 */
+		private final TorrentFile file;
+		/**
+		 * The window index
+		 */
+		private final long window;
+
+		/**
+		 * Creates a new key
+		 * 
+		 * @param file
+		 *            the mapped file
+		 * @param window
+		 *            the window index
+		 */
+		public WindowKey(TorrentFile file, long window) {
+			this.file = file;
+			this.window = window;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * file.hashCode() + (int) (window ^ (window >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof WindowKey))
+				return false;
+			final WindowKey other = (WindowKey) obj;
+			return file == other.file && window == other.window;
+		}
+	}
+}
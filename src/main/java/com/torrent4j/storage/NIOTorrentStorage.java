@@ -37,9 +37,23 @@ public class NIOTorrentStorage extends FileAwareTorrentStorage {
 	 * 
 	 * @param root
 	 *            the place where torrent data is stored
+	 * @param defaultAllocationMode
+	 *            the allocation mode of torrents without one of their own
 	 */
-	public NIOTorrentStorage(Path root) {
+	public NIOTorrentStorage(Path root, AllocationMode defaultAllocationMode) {
 		this.root = root;
+		setDefaultAllocationMode(defaultAllocationMode);
+	}
+
+	/**
+	 * Creates a new instance which allocates {@link AllocationMode#SPARSE}
+	 * files
+	 * 
+	 * @param root
+	 *            the place where torrent data is stored
+	 */
+	public NIOTorrentStorage(Path root) {
+		this(root, AllocationMode.SPARSE);
 	}
 
 	/**
@@ -50,6 +64,11 @@ public class NIOTorrentStorage extends FileAwareTorrentStorage {
 		this(Paths.get(".").toAbsolutePath());
 	}
 
+	@Override
+	public Path getPath(TorrentFile file) {
+		return root.resolve(file.getFileName());
+	}
+
 	@Override
 	protected synchronized boolean write(TorrentFile file, Range range,
 			ByteBuffer data) throws IOException {
@@ -87,7 +106,7 @@ public class NIOTorrentStorage extends FileAwareTorrentStorage {
 	 */
 	private SeekableByteChannel openChannel(TorrentFile file,
 			OpenOption... modes) throws IOException {
-		final Path filePath = root.resolve(file.getFileName());
+		final Path filePath = getPath(file);
 		try {
 			SeekableByteChannel channel = Files.newByteChannel(filePath, modes);
 			return channel;
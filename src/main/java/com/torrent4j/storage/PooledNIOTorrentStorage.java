@@ -0,0 +1,419 @@
+package com.torrent4j.storage;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.torrent4j.model.Torrent;
+import com.torrent4j.model.TorrentFile;
+import com.torrent4j.util.Range;
+
+/**
+ * This {@link TorrentStorage} instance implements
+ * {@link FileAwareTorrentStorage} much like {@link NIOTorrentStorage} does,
+ * but instead of opening and closing a channel for each read or write, it
+ * keeps a bounded LRU cache of open {@link FileChannel}s, one per
+ * {@link TorrentFile}.
+ * <p>
+ * All data is accessed with positional reads and writes
+ * ({@link FileChannel#read(ByteBuffer, long)} and
+ * {@link FileChannel#write(ByteBuffer, long)}), which do not touch the
+ * channel's shared position. Because of that, no lock is held while data is
+ * transferred and concurrent access to the same file (or to different files)
+ * by several peers does not serialize. The only lock is the one held on the
+ * cache itself while looking up, opening or evicting a channel.
+ * <p>
+ * If a channel gets evicted (and closed) while another thread is still using
+ * it, the operation is transparently retried on a freshly opened channel.
+ * Regions handed out for zero-copy transfers share the cached channels and
+ * hold a reference to them, so that an evicted channel is only closed once
+ * the last region using it is released.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class PooledNIOTorrentStorage extends FileAwareTorrentStorage {
+	/**
+	 * The default maximum number of simultaneously open channels
+	 */
+	public static final int DEFAULT_MAXIMUM_OPEN_FILES = 128;
+
+	/**
+	 * The place where data files are stored
+	 */
+	private final Path root;
+	/**
+	 * The maximum number of simultaneously open channels
+	 */
+	private final int maximumOpenFiles;
+
+	/**
+	 * The open channels, in access order. The eldest entry is closed once the
+	 * cache grows over {@link #maximumOpenFiles}.
+	 */
+	private final Map<TorrentFile, PooledChannel> channels;
+
+	/**
+	 * Creates a new instance
+	 * 
+	 * @param root
+	 *            the place where torrent data is stored
+	 * @param maximumOpenFiles
+	 *            the maximum number of simultaneously open channels
+	 */
+	public PooledNIOTorrentStorage(Path root, final int maximumOpenFiles) {
+		if (maximumOpenFiles <= 0)
+			throw new IllegalArgumentException("maximumOpenFiles must be > 0");
+		this.root = root;
+		this.maximumOpenFiles = maximumOpenFiles;
+		this.channels = new LinkedHashMap<TorrentFile, PooledChannel>(16,
+				0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Entry<TorrentFile, PooledChannel> eldest) {
+				if (size() <= maximumOpenFiles)
+					return false;
+				eldest.getValue().release();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Creates a new instance with {@link #DEFAULT_MAXIMUM_OPEN_FILES} open
+	 * channels at most
+	 * 
+	 * @param root
+	 *            the place where torrent data is stored
+	 */
+	public PooledNIOTorrentStorage(Path root) {
+		this(root, DEFAULT_MAXIMUM_OPEN_FILES);
+	}
+
+	/**
+	 * Creates a new instance which stores data into the current working
+	 * directory
+	 */
+	public PooledNIOTorrentStorage() {
+		this(Paths.get(".").toAbsolutePath());
+	}
+
+	@Override
+	public Path getPath(TorrentFile file) {
+		return root.resolve(file.getFileName());
+	}
+
+	@Override
+	protected boolean write(TorrentFile file, Range range, ByteBuffer data)
+			throws IOException {
+		while (true) {
+			final FileChannel channel = getChannel(file, true);
+			if (channel == null)
+				return false;
+			final int position = data.position();
+			try {
+				long offset = range.getStart();
+				while (data.hasRemaining()) {
+					offset += channel.write(data, offset);
+				}
+				return true;
+			} catch (ClosedByInterruptException e) {
+				throw e;
+			} catch (ClosedChannelException e) {
+				// evicted while in use, retry with a fresh channel
+				data.position(position);
+				evict(file, channel);
+			}
+		}
+	}
+
+	@Override
+	protected boolean read(TorrentFile file, Range range, ByteBuffer data)
+			throws IOException {
+		while (true) {
+			final FileChannel channel = getChannel(file, false);
+			if (channel == null)
+				return false;
+			final int position = data.position();
+			try {
+				long offset = range.getStart();
+				while (data.hasRemaining()) {
+					final int read = channel.read(data, offset);
+					if (read < 0)
+						break;
+					offset += read;
+				}
+				return data.position() > position;
+			} catch (ClosedByInterruptException e) {
+				throw e;
+			} catch (ClosedChannelException e) {
+				// evicted while in use, retry with a fresh channel
+				data.position(position);
+				evict(file, channel);
+			}
+		}
+	}
+
+	@Override
+	protected TorrentStorageRegion region(TorrentFile file, long position,
+			long length) throws IOException {
+		final PooledChannel pooled;
+		synchronized (channels) {
+			pooled = getPooledChannel(file, false);
+			if (pooled == null)
+				return null;
+			pooled.retain();
+		}
+		try {
+			if (pooled.channel.size() < position + length) {
+				pooled.release();
+				return null;
+			}
+		} catch (IOException e) {
+			pooled.release();
+			throw e;
+		}
+		return new TorrentStorageRegion(pooled.channel, position, length) {
+			@Override
+			public void close() {
+				pooled.release();
+			}
+		};
+	}
+
+	/**
+	 * Closes the channel for the given <code>file</code>, if open. The channel
+	 * is reopened on the next access.
+	 * 
+	 * @param file
+	 *            the file
+	 */
+	public void close(TorrentFile file) {
+		final PooledChannel pooled;
+		synchronized (channels) {
+			pooled = channels.remove(file);
+		}
+		if (pooled != null)
+			pooled.release();
+	}
+
+	@Override
+	public void release(Torrent torrent) {
+		for (final TorrentFile file : torrent.getFiles()) {
+			close(file);
+		}
+		super.release(torrent);
+	}
+
+	/**
+	 * Closes all open channels
+	 */
+	public void close() {
+		final List<PooledChannel> open;
+		synchronized (channels) {
+			open = new ArrayList<>(channels.values());
+			channels.clear();
+		}
+		for (final PooledChannel pooled : open) {
+			pooled.release();
+		}
+	}
+
+	/**
+	 * @return the maximum number of simultaneously open channels
+	 */
+	public int getMaximumOpenFiles() {
+		return maximumOpenFiles;
+	}
+
+	/**
+	 * Returns the cached channel for <code>file</code>, opening it if
+	 * necessary. Files are opened read-only until they are first written, so
+	 * that read-only data can be seeded. The read-only channel is then
+	 * replaced by one with write access and closed; readers still using it
+	 * retry with the new channel.
+	 * 
+	 * @param file
+	 *            the torrent file
+	 * @param write
+	 *            whether the channel is used for writing, in which case the
+	 *            file is created if it does not exists
+	 * @return the open {@link FileChannel} or <code>null</code> if the file
+	 *         does not exists and <code>write</code> is <code>false</code>
+	 * @throws IOException
+	 *             if any error is thrown by NIO.2
+	 */
+	private FileChannel getChannel(TorrentFile file, boolean write)
+			throws IOException {
+		synchronized (channels) {
+			final PooledChannel pooled = getPooledChannel(file, write);
+			if (pooled == null)
+				return null;
+			return pooled.channel;
+		}
+	}
+
+	/**
+	 * Returns the cache entry for <code>file</code>, opening the channel if
+	 * necessary. Must be called while holding the lock on {@link #channels}.
+	 * 
+	 * @param file
+	 *            the torrent file
+	 * @param write
+	 *            whether the channel is used for writing
+	 * @return the cache entry or <code>null</code> if the file does not
+	 *         exists and <code>write</code> is <code>false</code>
+	 * @throws IOException
+	 *             if any error is thrown by NIO.2
+	 * @see #getChannel(TorrentFile, boolean)
+	 */
+	private PooledChannel getPooledChannel(TorrentFile file, boolean write)
+			throws IOException {
+		final PooledChannel pooled = channels.get(file);
+		if (pooled != null && pooled.channel.isOpen()
+				&& (pooled.writable || !write))
+			return pooled;
+		final FileChannel channel;
+		if (write) {
+			// files of multi-file torrents might be in subdirectories
+			final Path parent = getPath(file).getParent();
+			if (parent != null)
+				Files.createDirectories(parent);
+			channel = openChannel(file, CREATE, READ, WRITE);
+		} else {
+			channel = openChannel(file, READ);
+		}
+		if (channel == null)
+			return null;
+		final PooledChannel opened = new PooledChannel(channel, write);
+		channels.put(file, opened);
+		if (pooled != null)
+			pooled.release();
+		return opened;
+	}
+
+	/**
+	 * Removes <code>channel</code> from the cache if it is still the cached
+	 * channel for <code>file</code>.
+	 * 
+	 * @param file
+	 *            the torrent file
+	 * @param channel
+	 *            the closed channel
+	 */
+	private void evict(TorrentFile file, FileChannel channel) {
+		synchronized (channels) {
+			final PooledChannel pooled = channels.get(file);
+			if (pooled != null && pooled.channel == channel) {
+				channels.remove(file);
+				pooled.release();
+			}
+		}
+	}
+
+	/**
+	 * Opens a new channel into the torrent <code>file</code>.
+	 * 
+	 * @param file
+	 *            the torrent file
+	 * @param modes
+	 *            the file open mode
+	 * @return an {@link FileChannel} or <code>null</code> if the file does not
+	 *         exists
+	 * @throws IOException
+	 *             if any error is thrown by NIO.2
+	 */
+	private FileChannel openChannel(TorrentFile file, OpenOption... modes)
+			throws IOException {
+		final Path filePath = getPath(file);
+		try {
+			return FileChannel.open(filePath, modes);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Closes the channel ignoring any errors
+	 * 
+	 * @param channel
+	 *            the channel to be closed, may be <code>null</code>
+	 */
+	private static void closeQuietly(FileChannel channel) {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * A cached channel and the access it was opened with. The cache holds one
+	 * reference and each region using the channel another one; the channel is
+	 * closed once all of them are released.
+	 * 
+	 * @author <a href="http://www.rogiel.com">Rogiel</a>
+	 */
+	private static class PooledChannel {
+		/**
+		 * The open channel
+		 */
+		private final FileChannel channel;
+		/**
+		 * Whether the channel was opened with write access
+		 */
+		private final boolean writable;
+		/**
+		 * The number of references to the channel, starting with the one held
+		 * by the cache
+		 */
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		/**
+		 * @param channel
+		 *            the open channel
+		 * @param writable
+		 *            whether the channel was opened with write access
+		 */
+		private PooledChannel(FileChannel channel, boolean writable) {
+			this.channel = channel;
+			this.writable = writable;
+		}
+
+		/**
+		 * Adds a reference to the channel. Must be called while holding the
+		 * lock on {@link PooledNIOTorrentStorage#channels}, while the entry
+		 * is still cached.
+		 */
+		private void retain() {
+			references.incrementAndGet();
+		}
+
+		/**
+		 * Releases a reference to the channel, closing it if it was the last
+		 */
+		private void release() {
+			if (references.decrementAndGet() == 0)
+				closeQuietly(channel);
+		}
+	}
+}
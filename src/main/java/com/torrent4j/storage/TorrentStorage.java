@@ -1,5 +1,8 @@
 package com.torrent4j.storage;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -47,6 +50,43 @@ public interface TorrentStorage {
 	 */
 	ByteBuffer read(Torrent torrent, Range torrentRange) throws IOException;
 
+	/**
+	 * Writes data held by a Netty buffer into the underlying storage. The
+	 * buffer readable bytes are written, the buffer indexes are not changed
+	 * and the buffer is not released.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param torrentRange
+	 *            the range in which the data is located
+	 * @param data
+	 *            the data itself
+	 * @return <code>true</code> if the write was successful
+	 * @throws IOException
+	 *             if any error occur while writing
+	 */
+	boolean write(Torrent torrent, Range torrentRange, ByteBuf data)
+			throws IOException;
+
+	/**
+	 * Reads data from the underlying storage into a buffer allocated by the
+	 * given allocator, so that data can be sent to the network without being
+	 * copied again. The caller is responsible for releasing the buffer.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param torrentRange
+	 *            the range in which the data should be read from
+	 * @param allocator
+	 *            the allocator for the returned buffer
+	 * @return an {@link ByteBuf} or <code>null</code> if the data is not
+	 *         available
+	 * @throws IOException
+	 *             if any error occur while reading
+	 */
+	ByteBuf read(Torrent torrent, Range torrentRange, ByteBufAllocator allocator)
+			throws IOException;
+
 	/**
 	 * Calculates the checksum of an given piece
 	 * 
@@ -58,4 +98,28 @@ public interface TorrentStorage {
 	 *             checksum
 	 */
 	Hash checksum(TorrentPiece piece) throws IOException;
+
+	/**
+	 * Reserves the space needed to store the torrent data, if the storage
+	 * supports it. This is called on a background thread once the torrent is
+	 * registered on its controller, so data may be written and read while the
+	 * space is allocated.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @throws IOException
+	 *             if any error occur while allocating
+	 */
+	void allocate(Torrent torrent) throws IOException;
+
+	/**
+	 * Releases all resources (open files, mappings, buffers) held by the
+	 * storage for the given torrent. This is called once the torrent is
+	 * removed from its controller. If the torrent is accessed again, resources
+	 * are allocated again on demand.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 */
+	void release(Torrent torrent);
 }
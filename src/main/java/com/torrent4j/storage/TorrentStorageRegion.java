@@ -0,0 +1,79 @@
+package com.torrent4j.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Describes a contiguous region of torrent data stored on a single file. A
+ * region can be transferred directly from the file to the network (using
+ * <code>sendfile</code> where available) without ever copying data into
+ * memory.
+ * <p>
+ * Whoever consumes the region is responsible for closing it once the transfer
+ * is complete. By default the region owns its channel and closing the region
+ * closes the channel; storages sharing their channels override
+ * {@link #close()} to release the channel instead.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class TorrentStorageRegion {
+	/**
+	 * The channel of the file in which data is stored
+	 */
+	private final FileChannel channel;
+	/**
+	 * The position of the data inside the file
+	 */
+	private final long position;
+	/**
+	 * The data length
+	 */
+	private final long length;
+
+	/**
+	 * Creates a new instance
+	 * 
+	 * @param channel
+	 *            the channel of the file in which data is stored
+	 * @param position
+	 *            the position of the data inside the file
+	 * @param length
+	 *            the data length
+	 */
+	public TorrentStorageRegion(FileChannel channel, long position, long length) {
+		this.channel = channel;
+		this.position = position;
+		this.length = length;
+	}
+
+	/**
+	 * @return the channel of the file in which data is stored
+	 */
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return the position of the data inside the file
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return the data length
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Releases the region, closing the underlying channel unless it is shared
+	 * 
+	 * @throws IOException
+	 *             if any error occur while closing the channel
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
+}
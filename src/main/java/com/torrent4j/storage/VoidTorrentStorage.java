@@ -1,5 +1,8 @@
 package com.torrent4j.storage;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -32,8 +35,31 @@ public class VoidTorrentStorage implements TorrentStorage {
 		return ByteBuffer.allocate((int) range.getLength());
 	}
 
+	@Override
+	public boolean write(Torrent torrent, Range range, ByteBuf data)
+			throws IOException {
+		return true;
+	}
+
+	@Override
+	public ByteBuf read(Torrent torrent, Range range,
+			ByteBufAllocator allocator) throws IOException {
+		final int length = (int) range.getLength();
+		final ByteBuf data = allocator.buffer(length);
+		data.writeZero(length);
+		return data;
+	}
+
 	@Override
 	public Hash checksum(TorrentPiece piece) {
 		return piece.getHash();
 	}
+
+	@Override
+	public void allocate(Torrent torrent) {
+	}
+
+	@Override
+	public void release(Torrent torrent) {
+	}
 }
@@ -0,0 +1,491 @@
+package com.torrent4j.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.torrent4j.model.Torrent;
+import com.torrent4j.model.TorrentPiece;
+import com.torrent4j.model.TorrentPieceBlock;
+import com.torrent4j.util.Hash;
+import com.torrent4j.util.Range;
+
+/**
+ * A {@link TorrentStorage} decorator that buffers downloaded blocks in pooled
+ * memory, one piece sized buffer per piece, instead of writing each block as
+ * it arrives. Once all blocks of a piece are buffered, the piece is written to
+ * the underlying storage in a single write. Pieces are not verified here: the
+ * download path already hashes blocks as they arrive.
+ * <p>
+ * At most <code>maximumDirtyBytes</code> are held by piece buffers, counting
+ * each buffer whole. Above that, the pieces buffered for longest are written
+ * as they are, one write per contiguous run of blocks, and the remaining
+ * blocks of those pieces are written through.
+ * <p>
+ * Only writes of whole blocks are buffered. Other writes, and reads or
+ * checksums of buffered pieces, write the buffered blocks they overlap first,
+ * so that the underlying storage is always consistent when accessed. The
+ * remaining blocks of those pieces are written through as well.
+ * <p>
+ * Although this storage is not a {@link FileAwareTorrentStorage}, the
+ * controller looks through it, so fast resume keeps working when it decorates
+ * one.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class WriteBackTorrentStorage implements TorrentStorage {
+	/**
+	 * The storage holding the data
+	 */
+	private final TorrentStorage storage;
+	/**
+	 * The maximum number of bytes held by piece buffers
+	 */
+	private final long maximumDirtyBytes;
+	/**
+	 * The allocator for piece buffers
+	 */
+	private final ByteBufAllocator allocator;
+
+	/**
+	 * The buffered pieces, in the order they were started
+	 */
+	private final Map<TorrentPiece, DirtyPiece> pieces = new LinkedHashMap<>();
+	/**
+	 * The pieces partially written because of memory pressure. Their
+	 * remaining blocks are written through.
+	 */
+	private final Set<TorrentPiece> spilled = new HashSet<>();
+	/**
+	 * The number of bytes held by piece buffers
+	 */
+	private long dirtyBytes = 0;
+
+	/**
+	 * The number of pieces written in a single write
+	 */
+	private long coalescedPieces = 0;
+	/**
+	 * The number of pieces written early because of memory pressure
+	 */
+	private long spilledPieces = 0;
+
+	/**
+	 * Creates a new instance
+	 * 
+	 * @param storage
+	 *            the storage holding the data
+	 * @param maximumDirtyBytes
+	 *            the maximum number of bytes held by piece buffers
+	 * @param allocator
+	 *            the allocator for piece buffers
+	 */
+	public WriteBackTorrentStorage(TorrentStorage storage,
+			long maximumDirtyBytes, ByteBufAllocator allocator) {
+		if (maximumDirtyBytes <= 0)
+			throw new IllegalArgumentException("maximumDirtyBytes must be > 0");
+		this.storage = storage;
+		this.maximumDirtyBytes = maximumDirtyBytes;
+		this.allocator = allocator;
+	}
+
+	/**
+	 * Creates a new instance which buffers pieces in pooled direct buffers
+	 * 
+	 * @param storage
+	 *            the storage holding the data
+	 * @param maximumDirtyBytes
+	 *            the maximum number of bytes held by piece buffers
+	 */
+	public WriteBackTorrentStorage(TorrentStorage storage,
+			long maximumDirtyBytes) {
+		this(storage, maximumDirtyBytes, PooledByteBufAllocator.DEFAULT);
+	}
+
+	@Override
+	public boolean write(Torrent torrent, Range torrentRange, ByteBuffer data)
+			throws IOException {
+		final TorrentPieceBlock block = getBlock(torrent, torrentRange);
+		if (block == null) {
+			flush(torrent, torrentRange);
+			return storage.write(torrent, torrentRange, data);
+		}
+		final List<DirtyPiece> flushed;
+		synchronized (this) {
+			final DirtyPiece piece = getDirtyPiece(block.getPiece());
+			if (piece == null) {
+				flushed = null;
+			} else {
+				piece.buffer.setBytes(block.getOffset(), data.duplicate());
+				flushed = add(piece, block);
+			}
+		}
+		if (flushed == null)
+			return storage.write(torrent, torrentRange, data);
+		return write(flushed);
+	}
+
+	@Override
+	public boolean write(Torrent torrent, Range torrentRange, ByteBuf data)
+			throws IOException {
+		final TorrentPieceBlock block = getBlock(torrent, torrentRange);
+		if (block == null) {
+			flush(torrent, torrentRange);
+			return storage.write(torrent, torrentRange, data);
+		}
+		final List<DirtyPiece> flushed;
+		synchronized (this) {
+			final DirtyPiece piece = getDirtyPiece(block.getPiece());
+			if (piece == null) {
+				flushed = null;
+			} else {
+				piece.buffer.setBytes(block.getOffset(), data,
+						data.readerIndex(), data.readableBytes());
+				flushed = add(piece, block);
+			}
+		}
+		if (flushed == null)
+			return storage.write(torrent, torrentRange, data);
+		return write(flushed);
+	}
+
+	@Override
+	public ByteBuffer read(Torrent torrent, Range torrentRange)
+			throws IOException {
+		flush(torrent, torrentRange);
+		return storage.read(torrent, torrentRange);
+	}
+
+	@Override
+	public ByteBuf read(Torrent torrent, Range torrentRange,
+			ByteBufAllocator allocator) throws IOException {
+		flush(torrent, torrentRange);
+		return storage.read(torrent, torrentRange, allocator);
+	}
+
+	@Override
+	public Hash checksum(TorrentPiece piece) throws IOException {
+		flush(piece.getTorrent(), piece.getTorrentRange());
+		return storage.checksum(piece);
+	}
+
+	@Override
+	public void allocate(Torrent torrent) throws IOException {
+		storage.allocate(torrent);
+	}
+
+	@Override
+	public void release(Torrent torrent) {
+		final List<DirtyPiece> flushed = new ArrayList<>();
+		synchronized (this) {
+			final Iterator<DirtyPiece> iterator = pieces.values().iterator();
+			while (iterator.hasNext()) {
+				final DirtyPiece piece = iterator.next();
+				if (piece.piece.getTorrent() != torrent)
+					continue;
+				iterator.remove();
+				dirtyBytes -= piece.piece.getLength();
+				flushed.add(piece);
+			}
+			final Iterator<TorrentPiece> spilledIterator = spilled.iterator();
+			while (spilledIterator.hasNext()) {
+				if (spilledIterator.next().getTorrent() == torrent)
+					spilledIterator.remove();
+			}
+		}
+		try {
+			write(flushed);
+		} catch (IOException e) {
+			// nothing more can be done, the torrent is going away
+		}
+		storage.release(torrent);
+	}
+
+	/**
+	 * Writes all buffered blocks to the underlying storage
+	 * 
+	 * @return <code>true</code> if all writes were successful
+	 * @throws IOException
+	 *             if any error occur while writing
+	 */
+	public boolean flush() throws IOException {
+		final List<DirtyPiece> flushed;
+		synchronized (this) {
+			flushed = new ArrayList<>(pieces.values());
+			spilled.addAll(pieces.keySet());
+			pieces.clear();
+			dirtyBytes = 0;
+		}
+		return write(flushed);
+	}
+
+	/**
+	 * Writes all buffered blocks of the torrent to the underlying storage,
+	 * for instance before its download state is saved
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @return <code>true</code> if all writes were successful
+	 * @throws IOException
+	 *             if any error occur while writing
+	 */
+	public boolean flush(Torrent torrent) throws IOException {
+		final List<DirtyPiece> flushed = new ArrayList<>();
+		synchronized (this) {
+			final Iterator<DirtyPiece> iterator = pieces.values().iterator();
+			while (iterator.hasNext()) {
+				final DirtyPiece piece = iterator.next();
+				if (piece.piece.getTorrent() != torrent)
+					continue;
+				iterator.remove();
+				dirtyBytes -= piece.piece.getLength();
+				spilled.add(piece.piece);
+				flushed.add(piece);
+			}
+		}
+		return write(flushed);
+	}
+
+	/**
+	 * Writes the buffered blocks of all pieces overlapping the range
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param range
+	 *            the range
+	 * @throws IOException
+	 *             if any error occur while writing
+	 */
+	private void flush(Torrent torrent, Range range) throws IOException {
+		final List<DirtyPiece> flushed = new ArrayList<>();
+		synchronized (this) {
+			if (pieces.isEmpty())
+				return;
+			for (final TorrentPiece piece : torrent.getPieces(range)) {
+				final DirtyPiece dirty = pieces.remove(piece);
+				if (dirty == null)
+					continue;
+				dirtyBytes -= dirty.piece.getLength();
+				spilled.add(piece);
+				flushed.add(dirty);
+			}
+		}
+		write(flushed);
+	}
+
+	/**
+	 * Records a buffered block. Completed pieces, and the oldest pieces if
+	 * the memory limit has been exceeded, are removed from the buffer and
+	 * returned to be written. Must be called while holding the monitor.
+	 * 
+	 * @param piece
+	 *            the piece
+	 * @param block
+	 *            the block just copied into the piece buffer
+	 * @return the pieces to be written
+	 */
+	private List<DirtyPiece> add(DirtyPiece piece, TorrentPieceBlock block) {
+		piece.blocks.set(block.getIndex());
+		if (piece.isComplete()) {
+			pieces.remove(piece.piece);
+			dirtyBytes -= piece.piece.getLength();
+			return Collections.singletonList(piece);
+		}
+		if (dirtyBytes <= maximumDirtyBytes)
+			return Collections.emptyList();
+
+		final List<DirtyPiece> flushed = new ArrayList<>();
+		final Iterator<DirtyPiece> iterator = pieces.values().iterator();
+		while (dirtyBytes > maximumDirtyBytes && iterator.hasNext()) {
+			final DirtyPiece oldest = iterator.next();
+			iterator.remove();
+			dirtyBytes -= oldest.piece.getLength();
+			spilled.add(oldest.piece);
+			spilledPieces++;
+			flushed.add(oldest);
+		}
+		return flushed;
+	}
+
+	/**
+	 * Writes the pieces removed from the buffer and releases their buffers
+	 * 
+	 * @param flushed
+	 *            the pieces to be written
+	 * @return <code>true</code> if all writes were successful
+	 * @throws IOException
+	 *             if any error occur while writing
+	 */
+	private boolean write(List<DirtyPiece> flushed) throws IOException {
+		boolean success = true;
+		IOException error = null;
+		for (final DirtyPiece piece : flushed) {
+			try {
+				if (error == null)
+					success &= piece.write();
+			} catch (IOException e) {
+				error = e;
+			} finally {
+				piece.buffer.release();
+			}
+		}
+		if (error != null)
+			throw error;
+		return success;
+	}
+
+	/**
+	 * Must be called while holding the monitor.
+	 * 
+	 * @param piece
+	 *            the piece
+	 * @return the piece buffer, created if necessary, or <code>null</code> if
+	 *         the piece blocks are written through
+	 */
+	private DirtyPiece getDirtyPiece(TorrentPiece piece) {
+		if (spilled.contains(piece))
+			return null;
+		DirtyPiece dirty = pieces.get(piece);
+		if (dirty == null) {
+			dirty = new DirtyPiece(piece);
+			pieces.put(piece, dirty);
+			dirtyBytes += piece.getLength();
+		}
+		return dirty;
+	}
+
+	/**
+	 * @param torrent
+	 *            the torrent
+	 * @param range
+	 *            the range being written
+	 * @return the block the range corresponds to exactly, <code>null</code>
+	 *         if it is not a whole block
+	 */
+	private static TorrentPieceBlock getBlock(Torrent torrent, Range range) {
+		final List<TorrentPiece> pieces = torrent.getPieces(range);
+		if (pieces.size() != 1)
+			return null;
+		final TorrentPiece piece = pieces.get(0);
+		return piece.getBlock((int) (range.getStart() - piece.getOffset()),
+				(int) range.getLength());
+	}
+
+	/**
+	 * @return the storage holding the data
+	 */
+	public TorrentStorage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * @return the maximum number of bytes held by piece buffers
+	 */
+	public long getMaximumDirtyBytes() {
+		return maximumDirtyBytes;
+	}
+
+	/**
+	 * @return the number of bytes held by piece buffers
+	 */
+	public synchronized long getDirtyBytes() {
+		return dirtyBytes;
+	}
+
+	/**
+	 * @return the number of pieces written in a single write
+	 */
+	public synchronized long getCoalescedPieces() {
+		return coalescedPieces;
+	}
+
+	/**
+	 * @return the number of pieces written early because of memory pressure
+	 */
+	public synchronized long getSpilledPieces() {
+		return spilledPieces;
+	}
+
+	/**
+	 * The buffered blocks of a piece
+	 * 
+	 * @author <a href="http://www.rogiel.com">Rogiel</a>
+	 */
+	private class DirtyPiece {
+		/**
+		 * The piece
+		 */
+		private final TorrentPiece piece;
+		/**
+		 * The piece data, blocks are copied at their offset
+		 */
+		private final ByteBuf buffer;
+		/**
+		 * The blocks buffered, by block index
+		 */
+		private final BitSet blocks = new BitSet();
+
+		/**
+		 * @param piece
+		 *            the piece
+		 */
+		private DirtyPiece(TorrentPiece piece) {
+			this.piece = piece;
+			this.buffer = allocator.directBuffer(piece.getLength());
+		}
+
+		/**
+		 * @return <code>true</code> if all piece blocks are buffered
+		 */
+		private boolean isComplete() {
+			return blocks.cardinality() == piece.getBlockCount();
+		}
+
+		/**
+		 * Writes the buffered blocks. Complete pieces are written at once,
+		 * others are written one contiguous run of blocks at a time.
+		 * 
+		 * @return <code>true</code> if all writes were successful
+		 * @throws IOException
+		 *             if any error occur while writing
+		 */
+		private boolean write() throws IOException {
+			if (isComplete()) {
+				synchronized (WriteBackTorrentStorage.this) {
+					coalescedPieces++;
+				}
+				return storage.write(piece.getTorrent(),
+						piece.getTorrentRange(),
+						buffer.slice(0, piece.getLength()));
+			}
+
+			boolean success = true;
+			int start = blocks.nextSetBit(0);
+			while (start >= 0) {
+				final int end = blocks.nextClearBit(start);
+				final TorrentPieceBlock first = piece.getBlock(start);
+				final TorrentPieceBlock last = piece.getBlock(end - 1);
+				final int length = last.getOffset() + last.getLength()
+						- first.getOffset();
+				success &= storage.write(piece.getTorrent(), Range
+						.getRangeByLength(piece.getOffset() + first.getOffset(),
+								length), buffer.slice(first.getOffset(),
+						length));
+				start = blocks.nextSetBit(end);
+			}
+			return success;
+		}
+	}
+}
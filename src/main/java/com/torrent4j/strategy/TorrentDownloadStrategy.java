@@ -1,5 +1,6 @@
 package com.torrent4j.strategy;
 
+import com.torrent4j.TorrentControllerConfiguration;
 import com.torrent4j.model.Torrent;
 import com.torrent4j.model.TorrentPiece;
 import com.torrent4j.model.TorrentPieceBlock;
@@ -24,6 +25,21 @@ public interface TorrentDownloadStrategy {
 	void blockReceived(Torrent torrent, TorrentPieceBlock block,
 			TorrentPeer peer);
 
+	/**
+	 * Notifies that an block has been requested but the peer did not send it
+	 * in time. The request has already been removed from the peer request
+	 * queue, making the block available to be requested again.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param block
+	 *            the block whose request has timed out
+	 * @param peer
+	 *            the peer from which the block was requested
+	 */
+	void blockRequestTimedOut(Torrent torrent, TorrentPieceBlock block,
+			TorrentPeer peer);
+
 	/**
 	 * Notifies that an piece is complete and its checksum its corrects
 	 * 
@@ -48,4 +64,16 @@ public interface TorrentDownloadStrategy {
 	 */
 	void pieceChecksumFailed(Torrent torrent, TorrentPiece piece,
 			TorrentPeer peer);
+
+	/**
+	 * Notifies that completed pieces should be announced to the swarm. This
+	 * is called periodically, every
+	 * {@link TorrentControllerConfiguration#getHaveBroadcastInterval()}
+	 * milliseconds, so that pieces completed in the meantime can be announced
+	 * together.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 */
+	void broadcastHaves(Torrent torrent);
 }
@@ -1,5 +1,6 @@
 package com.torrent4j.strategy;
 
+import com.torrent4j.TorrentControllerConfiguration;
 import com.torrent4j.model.Torrent;
 import com.torrent4j.model.TorrentPiece;
 import com.torrent4j.model.peer.TorrentPeer;
@@ -111,6 +112,17 @@ public interface TorrentPeerStrategy {
 	 */
 	void peerIdle(Torrent torrent, TorrentPeer peer, long idleTime);
 
+	/**
+	 * Notifies that a new choking round should be performed. This is called
+	 * periodically, every
+	 * {@link TorrentControllerConfiguration#getChokeInterval()} seconds, and
+	 * is the moment to decide which peers should be uploaded to.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 */
+	void rechoke(Torrent torrent);
+
 	/**
 	 * Notifies the the peer has been disconnected. Note that this method is
 	 * called either if the client closed the connection or if we requested an
@@ -11,7 +11,8 @@ import com.torrent4j.model.peer.TorrentPeer;
  */
 public interface TorrentUploadStrategy {
 	/**
-	 * Notifies that an given peer is requesting an block upload
+	 * Notifies that an given peer is requesting an block upload. The block has
+	 * already been added to the peer upload queue.
 	 * 
 	 * @param torrent
 	 *            the torrent
@@ -35,4 +36,17 @@ public interface TorrentUploadStrategy {
 	 */
 	void blockRequestCancelled(Torrent torrent, TorrentPieceBlock block,
 			TorrentPeer peer);
+
+	/**
+	 * Notifies that a block taken from the peer upload queue has been sent
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param block
+	 *            the sent block
+	 * @param peer
+	 *            the peer which requested the block
+	 */
+	void blockUploaded(Torrent torrent, TorrentPieceBlock block,
+			TorrentPeer peer);
 }
@@ -0,0 +1,75 @@
+package com.torrent4j.strategy.standard;
+
+import java.util.BitSet;
+
+import com.torrent4j.TorrentControllerConfiguration;
+import com.torrent4j.model.Torrent;
+import com.torrent4j.model.TorrentSwarm.SwarmBroadcastHandler;
+import com.torrent4j.model.peer.TorrentPeer;
+
+/**
+ * Collects the pieces completed since the last broadcast, so that they can be
+ * announced to the swarm in batches instead of one <code>have</code> message
+ * write per piece and peer. Broadcasts happen every
+ * {@link TorrentControllerConfiguration#getHaveBroadcastInterval()}
+ * milliseconds and all messages for a peer are flushed at once.
+ * <p>
+ * Peers that already have a piece are not told about it, as they would never
+ * request it from us anyway.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class HaveAggregator {
+	/**
+	 * The pieces completed since the last broadcast
+	 */
+	private final BitSet pending = new BitSet();
+
+	/**
+	 * Queues the piece to be announced on the next broadcast
+	 * 
+	 * @param index
+	 *            the completed piece index
+	 */
+	public synchronized void add(int index) {
+		pending.set(index);
+	}
+
+	/**
+	 * Announces all pieces queued since the last broadcast to the connected
+	 * peers that don't have them yet
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 */
+	public void broadcast(final Torrent torrent) {
+		final BitSet pieces;
+		synchronized (this) {
+			if (pending.isEmpty())
+				return;
+			pieces = (BitSet) pending.clone();
+			pending.clear();
+		}
+		torrent.getSwarm().broadcast(new SwarmBroadcastHandler() {
+			@Override
+			public void broadcast(TorrentPeer peer) {
+				final BitSet peerPieces = peer.getPieces().getBitSet();
+				boolean written = false;
+				for (int i = pieces.nextSetBit(0); i >= 0; i = pieces
+						.nextSetBit(i + 1)) {
+					if (peerPieces.get(i))
+						continue;
+					peer.have(torrent.getPiece(i));
+					written = true;
+				}
+				if (written)
+					peer.flush();
+			}
+
+			@Override
+			public boolean exception(Exception e) {
+				return false;
+			}
+		});
+	}
+}
@@ -1,12 +1,14 @@
 package com.torrent4j.strategy.standard;
 
+import java.util.Iterator;
 import java.util.List;
 
 import com.torrent4j.model.TorrentPiece;
 import com.torrent4j.model.peer.TorrentPeer;
 
 /**
- * Randomly selects an piece from the available peer pieces
+ * Randomly selects an piece from the available peer pieces which still have
+ * blocks to be requested
  * 
  * @author <a href="http://www.rogiel.com">Rogiel</a>
  */
@@ -15,6 +17,11 @@ public class RandomPieceSelector implements PieceSelector {
 	public TorrentPiece selectPiece(TorrentPeer peer) {
 		final List<TorrentPiece> pieces = peer.getPieces().getMissingPieces(
 				peer.getTorrent().getCompletedPieces());
+		for (final Iterator<TorrentPiece> iterator = pieces.iterator(); iterator
+				.hasNext();) {
+			if (!iterator.next().hasUnrequestedBlocks())
+				iterator.remove();
+		}
 		if (pieces.isEmpty())
 			return null;
 		return pieces.get((int) (Math.random() * pieces.size()));
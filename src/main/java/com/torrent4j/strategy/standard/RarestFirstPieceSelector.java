@@ -0,0 +1,24 @@
+package com.torrent4j.strategy.standard;
+
+import com.torrent4j.model.TorrentPiece;
+import com.torrent4j.model.TorrentPieceAvailability;
+import com.torrent4j.model.peer.TorrentPeer;
+
+/**
+ * Selects the piece available from the peer which fewer peers in the swarm
+ * have. Downloading rare pieces first makes them available to the rest of the
+ * swarm sooner and reduces the chance of a piece becoming unavailable once
+ * its owners leave. Ties are broken randomly.
+ * <p>
+ * Selection relies on the torrent {@link TorrentPieceAvailability} index and
+ * does not need to build the list of all pieces missing from the peer.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class RarestFirstPieceSelector implements PieceSelector {
+	@Override
+	public TorrentPiece selectPiece(TorrentPeer peer) {
+		return peer.getTorrent().getAvailability()
+				.selectRarest(peer.getPieces());
+	}
+}
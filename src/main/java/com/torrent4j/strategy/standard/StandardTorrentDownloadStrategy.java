@@ -3,7 +3,6 @@ package com.torrent4j.strategy.standard;
 import com.torrent4j.model.Torrent;
 import com.torrent4j.model.TorrentPiece;
 import com.torrent4j.model.TorrentPieceBlock;
-import com.torrent4j.model.TorrentSwarm.SwarmBroadcastHandler;
 import com.torrent4j.model.peer.TorrentPeer;
 import com.torrent4j.strategy.TorrentDownloadStrategy;
 
@@ -17,41 +16,25 @@ public class StandardTorrentDownloadStrategy implements TorrentDownloadStrategy
 	@Override
 	public void blockReceived(Torrent torrent, TorrentPieceBlock block,
 			TorrentPeer peer) {
-		TorrentPieceBlock next = block.getNextBlock();
-		if (next == null) {
-			final TorrentPiece piece = strategy.getPieceSelector().selectPiece(
-					peer);
-			if (piece == null) {
-				peer.withdrawInterest();
-				return;
-			}
-			next = piece.getFirstBlock();
-		}
-		peer.requestBlock(next);
+		strategy.cancelDuplicateRequests(block);
+		strategy.requestBlocks(peer);
+	}
+
+	@Override
+	public void blockRequestTimedOut(Torrent torrent, TorrentPieceBlock block,
+			TorrentPeer peer) {
+		peer.cancelRequestedBlock(block);
+		strategy.requestBlocks(peer);
 	}
 
 	@Override
 	public void pieceComplete(Torrent torrent,
-			final TorrentPiece completePiece, TorrentPeer peer) {
-		torrent.getSwarm().broadcast(new SwarmBroadcastHandler() {
-			@Override
-			public void broadcast(TorrentPeer peer) {
-				peer.have(completePiece);
-			}
-
-			@Override
-			public boolean exception(Exception e) {
-				return false;
-			}
-		});
-
-		final TorrentPiece piece = strategy.getPieceSelector()
-				.selectPiece(peer);
-		if (piece == null) {
-			peer.withdrawInterest();
-			return;
+			TorrentPiece completePiece, TorrentPeer peer) {
+		for (final TorrentPieceBlock block : completePiece.getBlocks()) {
+			strategy.cancelDuplicateRequests(block);
 		}
-		peer.requestBlock(piece.getFirstBlock());
+		strategy.getHaveAggregator().add(completePiece.getIndex());
+		strategy.requestBlocks(peer);
 	}
 
 	@Override
@@ -60,4 +43,9 @@ public class StandardTorrentDownloadStrategy implements TorrentDownloadStrategy
 		System.out.println("Checksum has failed!");
 		strategy.banPeer(peer);
 	}
+
+	@Override
+	public void broadcastHaves(Torrent torrent) {
+		strategy.getHaveAggregator().broadcast(torrent);
+	}
 }
@@ -45,24 +45,16 @@ public class StandardTorrentPeerStrategy implements TorrentPeerStrategy {
 	public void havePiece(Torrent torrent, TorrentPeer peer, TorrentPiece piece) {
 		if (torrent.getCompletedPieces().hasPiece(piece))
 			return;
-		if (peer.getState().hasDownloadRequestedBlock())
-			return;
 		if (peer.getState().isRemotellyChoked()) {
 			peer.declareInterest();
 		} else {
-			peer.requestBlock(piece.getFirstBlock());
+			strategy.requestBlocks(peer);
 		}
 	}
 
 	@Override
 	public void unchoked(Torrent torrent, TorrentPeer peer) {
-		final TorrentPiece piece = strategy.getPieceSelector()
-				.selectPiece(peer);
-		if (piece == null) {
-			peer.withdrawInterest();
-			return;
-		}
-		peer.requestBlock(piece.getFirstBlock());
+		strategy.requestBlocks(peer);
 	}
 
 	@Override
@@ -76,7 +68,9 @@ public class StandardTorrentPeerStrategy implements TorrentPeerStrategy {
 
 	@Override
 	public void interested(Torrent torrent, TorrentPeer peer) {
-		peer.unchoke();
+		// otherwise, the peer waits for the next choking round
+		if (strategy.getChoker().hasFreeSlot(torrent))
+			peer.unchoke();
 	}
 
 	@Override
@@ -94,6 +88,11 @@ public class StandardTorrentPeerStrategy implements TorrentPeerStrategy {
 		peer.keepAlive();
 	}
 
+	@Override
+	public void rechoke(Torrent torrent) {
+		strategy.getChoker().rechoke(torrent);
+	}
+
 	@Override
 	public void peerDisconnected(Torrent torrent, TorrentPeer peer) {
 	}
@@ -3,7 +3,11 @@ package com.torrent4j.strategy.standard;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.torrent4j.model.TorrentPiece;
+import com.torrent4j.model.TorrentPieceBlock;
+import com.torrent4j.model.TorrentPieceTable;
 import com.torrent4j.model.peer.TorrentPeer;
+import com.torrent4j.model.peer.TorrentPeerRequestQueue;
 import com.torrent4j.strategy.TorrentDownloadStrategy;
 import com.torrent4j.strategy.TorrentPeerStrategy;
 import com.torrent4j.strategy.TorrentStrategy;
@@ -17,6 +21,8 @@ public class StandardTorrentStrategy implements TorrentStrategy {
 	private final TorrentPeerStrategy peerStrategy = new StandardTorrentPeerStrategy(
 			this);
 	private final PieceSelector pieceSelector;
+	private final TitForTatChoker choker = new TitForTatChoker(this);
+	private final HaveAggregator haveAggregator = new HaveAggregator();
 
 	private final List<TorrentPeer> bannedPeers = new ArrayList<>();
 
@@ -25,7 +31,7 @@ public class StandardTorrentStrategy implements TorrentStrategy {
 	}
 
 	public StandardTorrentStrategy() {
-		this.pieceSelector = new RandomPieceSelector();
+		this.pieceSelector = new RarestFirstPieceSelector();
 	}
 
 	@Override
@@ -43,10 +49,107 @@ public class StandardTorrentStrategy implements TorrentStrategy {
 		return peerStrategy;
 	}
 
+	/**
+	 * Fills the peer request queue with blocks to be downloaded from it. The
+	 * piece of the last requested block is completed first, further pieces are
+	 * chosen by the {@link PieceSelector}. If the peer has no piece we are
+	 * missing, interest is withdrawn.
+	 * <p>
+	 * Once every missing block of the torrent is already requested, the
+	 * download enters endgame mode: blocks requested from other peers are
+	 * requested from this one too, so that the last pieces do not wait on the
+	 * slowest peer. Duplicate requests are cancelled as soon as one of them is
+	 * received, see {@link #cancelDuplicateRequests(TorrentPieceBlock)}.
+	 * 
+	 * @param peer
+	 *            the peer to request blocks from
+	 */
+	public void requestBlocks(TorrentPeer peer) {
+		if (peer.getState().isRemotellyChoked())
+			return;
+		final TorrentPeerRequestQueue requests = peer.getState().getRequests();
+		final TorrentPieceTable table = peer.getTorrent().getPieceTable();
+		while (!requests.isFull()) {
+			TorrentPieceBlock block = null;
+			final TorrentPieceBlock last = requests.getLastRequested();
+			if (last != null)
+				block = last.getPiece().getUnrequestedBlock();
+			if (block == null && table.hasUnrequestedBlocks()) {
+				final TorrentPiece piece = pieceSelector.selectPiece(peer);
+				if (piece != null)
+					block = piece.getUnrequestedBlock();
+			} else if (block == null) {
+				block = selectEndgameBlock(peer);
+			}
+			if (block == null)
+				break;
+			peer.requestBlock(block);
+		}
+		if (requests.isEmpty()
+				&& !peer.getPieces().hasMissingPieces(
+						peer.getTorrent().getCompletedPieces()))
+			peer.withdrawInterest();
+	}
+
+	/**
+	 * Selects, among the blocks requested but not yet downloaded, one the
+	 * peer has and that is not requested from it yet. Blocks requested from
+	 * fewer peers are preferred. Only called in endgame mode, when the
+	 * requested blocks are all that is left to download.
+	 * 
+	 * @param peer
+	 *            the peer
+	 * @return the block to be requested again, if any
+	 */
+	private TorrentPieceBlock selectEndgameBlock(TorrentPeer peer) {
+		final TorrentPeerRequestQueue requests = peer.getState().getRequests();
+		final TorrentPieceTable table = peer.getTorrent().getPieceTable();
+		TorrentPieceBlock selected = null;
+		int selectedRequests = 0;
+		for (int i = table.nextPendingBlock(0); i >= 0; i = table
+				.nextPendingBlock(i + 1)) {
+			final TorrentPieceBlock block = table.getBlock(i);
+			if (!peer.getPieces().hasPiece(block.getPiece())
+					|| requests.contains(block))
+				continue;
+			final int blockRequests = block.getRequests();
+			if (selected == null || blockRequests < selectedRequests) {
+				selected = block;
+				selectedRequests = blockRequests;
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Cancels the requests for a block made to other peers in endgame mode,
+	 * once the block has been received from one of them.
+	 * 
+	 * @param block
+	 *            the received block
+	 */
+	public void cancelDuplicateRequests(TorrentPieceBlock block) {
+		if (!block.isRequested())
+			return;
+		for (final TorrentPeer peer : block.getTorrent().getSwarm()
+				.getConnectedPeers()) {
+			if (peer.getState().getRequests().contains(block))
+				peer.cancelRequestedBlock(block);
+		}
+	}
+
 	public PieceSelector getPieceSelector() {
 		return pieceSelector;
 	}
 
+	public TitForTatChoker getChoker() {
+		return choker;
+	}
+
+	public HaveAggregator getHaveAggregator() {
+		return haveAggregator;
+	}
+
 	public void banPeer(TorrentPeer peer) {
 		bannedPeers.add(peer);
 	}
@@ -1,13 +1,30 @@
 package com.torrent4j.strategy.standard;
 
+import io.netty.buffer.ByteBuf;
+
 import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import com.torrent4j.TorrentController;
 import com.torrent4j.model.Torrent;
 import com.torrent4j.model.TorrentPieceBlock;
 import com.torrent4j.model.peer.TorrentPeer;
+import com.torrent4j.model.peer.TorrentPeerUploadQueue;
+import com.torrent4j.storage.FileAwareTorrentStorage;
 import com.torrent4j.storage.TorrentStorage;
+import com.torrent4j.storage.TorrentStorageRegion;
 import com.torrent4j.strategy.TorrentUploadStrategy;
 
+/**
+ * Serves the peer upload queues in request order. Queued blocks are read from
+ * the storage on the controller disk executor, up to
+ * {@link com.torrent4j.TorrentControllerConfiguration#getUploadReadAhead()}
+ * blocks ahead of the ones already sent, so that the network is never waiting
+ * for the disk and the event loop is never blocked by it.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
 public class StandardTorrentUploadStrategy implements TorrentUploadStrategy {
 	@SuppressWarnings("unused")
 	private final StandardTorrentStrategy strategy;
@@ -19,19 +36,97 @@ public class StandardTorrentUploadStrategy implements TorrentUploadStrategy {
 	@Override
 	public void blockRequested(Torrent torrent, TorrentPieceBlock block,
 			TorrentPeer peer) {
-		final TorrentStorage storage = torrent.getController().getStorage();
-		try {
-			peer.sendBlock(block,
-					storage.read(torrent, block.getTorrentRange()));
-		} catch (IOException e) {
-			peer.disconnect();
-			return;
-		}
+		serve(torrent, peer);
 	}
 
 	@Override
 	public void blockRequestCancelled(Torrent torrent, TorrentPieceBlock block,
 			TorrentPeer peer) {
-		// we don't queue uploads, so we don't need to worry about this
+		// the block has already been removed from the queue
+	}
+
+	@Override
+	public void blockUploaded(Torrent torrent, TorrentPieceBlock block,
+			TorrentPeer peer) {
+		serve(torrent, peer);
+	}
+
+	/**
+	 * Reads and sends the queued blocks on the disk executor, unless the
+	 * queue is already being served or enough blocks are in flight. If the
+	 * disk executor is saturated, serving the queue is retried later.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param peer
+	 *            the peer
+	 */
+	private void serve(final Torrent torrent, final TorrentPeer peer) {
+		final TorrentController controller = torrent.getController();
+		final int readAhead = controller.getConfig().getUploadReadAhead();
+		final TorrentPeerUploadQueue uploads = peer.getState().getUploads();
+		if (!uploads.startServing(readAhead))
+			return;
+		try {
+			controller.getDiskExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					TorrentPieceBlock block;
+					while ((block = uploads.next(readAhead)) != null) {
+						if (!upload(torrent, block, peer)) {
+							uploads.sent();
+							uploads.clear();
+							peer.disconnect();
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			uploads.stopServing();
+			if (controller.getDiskExecutor().isShutdown())
+				return;
+			controller.getScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					serve(torrent, peer);
+				}
+			}, controller.getConfig().getDiskRetryDelay(),
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Reads the block from the storage and sends it to the peer
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 * @param block
+	 *            the block
+	 * @param peer
+	 *            the peer
+	 * @return <code>true</code> if the block has been sent
+	 */
+	private boolean upload(Torrent torrent, TorrentPieceBlock block,
+			TorrentPeer peer) {
+		final TorrentStorage storage = torrent.getController().getStorage();
+		try {
+			if (torrent.getController().getConfig().isZeroCopyUpload()
+					&& storage instanceof FileAwareTorrentStorage) {
+				final TorrentStorageRegion region = ((FileAwareTorrentStorage) storage)
+						.region(torrent, block.getTorrentRange());
+				if (region != null) {
+					peer.sendBlock(block, region);
+					return true;
+				}
+			}
+			final ByteBuf data = storage.read(torrent, block.getTorrentRange(),
+					torrent.getController().getConfig().getAllocator());
+			if (data == null)
+				return false;
+			peer.sendBlock(block, data);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
 	}
 }
@@ -0,0 +1,148 @@
+package com.torrent4j.strategy.standard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.torrent4j.TorrentControllerConfiguration;
+import com.torrent4j.model.Torrent;
+import com.torrent4j.model.peer.TorrentPeer;
+
+/**
+ * Decides which peers are uploaded to, following the BitTorrent tit-for-tat
+ * algorithm. On each round, the interested peers are ranked by the rate they
+ * upload to us (or, once the torrent is complete, by the rate we upload to
+ * them) and only the best ones are unchoked, up to
+ * {@link TorrentControllerConfiguration#getUploadSlots()}.
+ * <p>
+ * An additional optimistic unchoke slot is rotated every
+ * {@link TorrentControllerConfiguration#getOptimisticUnchokeInterval()}
+ * seconds between the remaining interested peers. This gives new peers the
+ * chance to prove themselves and lets us discover faster peers.
+ * 
+ * @author <a href="http://www.rogiel.com">Rogiel</a>
+ */
+public class TitForTatChoker {
+	/**
+	 * The strategy
+	 */
+	private final StandardTorrentStrategy strategy;
+
+	/**
+	 * The peer currently optimistically unchoked, if any
+	 */
+	private TorrentPeer optimisticPeer;
+	/**
+	 * The time in which the optimistic peer was chosen
+	 */
+	private long optimisticUnchokeTime;
+
+	/**
+	 * Creates a new instance
+	 * 
+	 * @param strategy
+	 *            the strategy
+	 */
+	public TitForTatChoker(StandardTorrentStrategy strategy) {
+		this.strategy = strategy;
+	}
+
+	/**
+	 * Performs a choking round: unchokes the best interested peers plus the
+	 * optimistic unchoke and chokes everyone else.
+	 * 
+	 * @param torrent
+	 *            the torrent
+	 */
+	public synchronized void rechoke(final Torrent torrent) {
+		final TorrentControllerConfiguration config = torrent.getController()
+				.getConfig();
+		final boolean seeding = torrent.getCompletedPieces().isSeeder();
+
+		final List<TorrentPeer> peers = torrent.getSwarm().getConnectedPeers();
+		final List<TorrentPeer> candidates = new ArrayList<>();
+		// rates change while sorting, the comparator must see a snapshot
+		final Map<TorrentPeer, Long> rates = new HashMap<>();
+		for (final TorrentPeer peer : peers) {
+			if (peer.getState().isRemotellyInterested()
+					&& !strategy.isBanned(peer)) {
+				candidates.add(peer);
+				rates.put(peer, getRate(peer, seeding));
+			}
+		}
+		Collections.sort(candidates, new Comparator<TorrentPeer>() {
+			@Override
+			public int compare(TorrentPeer o1, TorrentPeer o2) {
+				return Long.compare(rates.get(o2), rates.get(o1));
+			}
+		});
+
+		final List<TorrentPeer> unchoked = new ArrayList<>(candidates.subList(
+				0, Math.min(config.getUploadSlots(), candidates.size())));
+		final List<TorrentPeer> remaining = candidates.subList(
+				unchoked.size(), candidates.size());
+
+		final long now = System.currentTimeMillis();
+		if (optimisticPeer == null
+				|| !remaining.contains(optimisticPeer)
+				|| now - optimisticUnchokeTime >= config
+						.getOptimisticUnchokeInterval() * 1000) {
+			optimisticPeer = null;
+			if (!remaining.isEmpty()) {
+				optimisticPeer = remaining.get(ThreadLocalRandom.current()
+						.nextInt(remaining.size()));
+				optimisticUnchokeTime = now;
+			}
+		}
+		if (optimisticPeer != null)
+			unchoked.add(optimisticPeer);
+
+		for (final TorrentPeer peer : peers) {
+			if (unchoked.contains(peer))
+				peer.unchoke();
+			else
+				peer.choke();
+		}
+	}
+
+	/**
+	 * @param torrent
+	 *            the torrent
+	 * @return <code>true</code> if less peers than the available upload slots
+	 *         are unchoked, so that a peer can be unchoked without waiting for
+	 *         the next round
+	 */
+	public boolean hasFreeSlot(Torrent torrent) {
+		int unchoked = 0;
+		for (final TorrentPeer peer : torrent.getSwarm().getConnectedPeers()) {
+			if (!peer.getState().isLocallyChoked())
+				unchoked++;
+		}
+		return unchoked < torrent.getController().getConfig()
+				.getUploadSlots();
+	}
+
+	/**
+	 * @param peer
+	 *            the peer
+	 * @param seeding
+	 *            whether the torrent is complete
+	 * @return the rate by which the peer is ranked
+	 */
+	private long getRate(TorrentPeer peer, boolean seeding) {
+		if (seeding)
+			return peer.getTrafficControl().getCurrentUploadSpeed();
+		return peer.getTrafficControl().getCurrentDownloadSpeed();
+	}
+
+	/**
+	 * @return the peer currently optimistically unchoked, if any
+	 */
+	public synchronized TorrentPeer getOptimisticPeer() {
+		return optimisticPeer;
+	}
+}
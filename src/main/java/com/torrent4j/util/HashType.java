@@ -35,9 +35,15 @@ public enum HashType {
 	}
 
 	public byte[] hash(ByteBuffer buffer) {
-		final byte[] data = new byte[buffer.remaining()];
-		buffer.get(data);
-		return hash(data);
+		final MessageDigest digest = createDigest();
+		if (digest == null)
+			return null;
+		digest.update(buffer);
+		return digest.digest();
+	}
+
+	public MessageDigest createDigest() {
+		return delegate.createDigest();
 	}
 
 	public String hashAsString(byte[] data) {
@@ -65,6 +71,8 @@ public enum HashType {
 	private interface HashDelegate {
 		byte[] hash(byte[] data);
 
+		MessageDigest createDigest();
+
 		String toString(byte[] hash);
 
 		byte[] fromString(String hash);
@@ -88,6 +96,15 @@ public enum HashType {
 			}
 		}
 
+		@Override
+		public MessageDigest createDigest() {
+			try {
+				return MessageDigest.getInstance(name);
+			} catch (NoSuchAlgorithmException e) {
+				return null;
+			}
+		}
+
 		@Override
 		public String toString(byte[] hash) {
 			return new String(Hex.encodeHex(hash));